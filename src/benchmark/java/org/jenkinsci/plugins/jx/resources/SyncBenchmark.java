@@ -0,0 +1,164 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.fabric8.kubernetes.client.utils.Serialization;
+import io.jenkins.x.client.kube.Fingerprints;
+import io.jenkins.x.client.kube.PipelineActivity;
+import io.jenkins.x.client.kube.PipelineActivitySpec;
+import io.jenkins.x.client.kube.PipelineActivityStep;
+import io.jenkins.x.client.kube.StageActivityStep;
+import io.jenkins.x.client.kube.Statuses;
+import io.jenkins.x.client.util.MarkupUtils;
+import io.jenkins.x.client.util.MergePatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks a single sync of a running build: applying the state of the run to its cached activity, detecting if
+ * it changed and if so creating the merge patch and caching the answer from a stubbed API server.
+ * <p>
+ * Run with <code>mvn -Pbenchmarks verify</code>; the GC profiler reports the allocation rate alongside ns/op.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SyncBenchmark {
+    @Param({"10", "100", "400"})
+    public int stageCount;
+
+    @Param({"1", "100", "1000"})
+    public int activeRuns;
+
+    /**
+     * The fraction of syncs in which a stage of the run has changed
+     */
+    @Param({"0.0", "0.1", "1.0"})
+    public double changeRatio;
+
+    private final ObjectMapper mapper = Serialization.jsonMapper();
+    private final BuildSyncRunListener listener = new BuildSyncRunListener();
+    private PipelineActivityCache cache;
+    private SimulatedRun[] runs;
+    private SplittableRandom random;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        cache = new PipelineActivityCache(Math.max(1000, activeRuns));
+        random = new SplittableRandom(42);
+        runs = new SimulatedRun[activeRuns];
+        long started = System.currentTimeMillis();
+        for (int i = 0; i < activeRuns; i++) {
+            SimulatedRun run = new SimulatedRun("benchmark-" + i, started);
+            for (int s = 0; s < stageCount; s++) {
+                StageInfo stage = new StageInfo(Integer.toString(s * 5 + 3), "Stage " + s, started + s);
+                stage.setStatus(Statuses.PENDING);
+                run.stages.add(stage);
+            }
+            PipelineActivity activity = new PipelineActivity();
+            activity.setMetadata(new ObjectMetaBuilder().withName(run.name).withResourceVersion("1").build());
+            listener.applyState(activity, run.context, Statuses.RUNNING, run.started, 0, run.stages);
+            cache.put(run.name, activity);
+            runs[i] = run;
+        }
+    }
+
+    @Benchmark
+    public void sync(Blackhole blackhole) throws Exception {
+        SimulatedRun run = runs[next];
+        next = (next + 1) % runs.length;
+        if (changeRatio > 0 && random.nextDouble() < changeRatio) {
+            StageInfo stage = run.stages.get(random.nextInt(run.stages.size()));
+            stage.setStatus(Statuses.PENDING.equals(stage.getStatus()) ? Statuses.RUNNING : Statuses.PENDING);
+        }
+
+        PipelineActivity activity = cache.get(run.name);
+        long oldFingerprint = cache.getFingerprint(run.name);
+        listener.applyState(activity, run.context, Statuses.RUNNING, run.started, 0, run.stages);
+        if (oldFingerprint != Fingerprints.of(activity.getSpec())) {
+            JsonNode json = mapper.valueToTree(activity);
+            blackhole.consume(MergePatch.diff(cache.getJson(run.name), json));
+            // the stubbed API server answers with the patched activity
+            cache.put(run.name, mapper.treeToValue(json, PipelineActivity.class));
+        }
+    }
+
+    /**
+     * Compares the old change detection, which serialised the spec to YAML twice and compared the strings, with
+     * comparing fingerprints; the GC profiler shows the bytes allocated per sync tick of each.
+     */
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    @Fork(1)
+    public static class ChangeDetection {
+        @Param({"10", "100", "400"})
+        public int stageCount;
+
+        private PipelineActivitySpec spec;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            spec = new PipelineActivitySpec();
+            spec.setPipeline("jstrachan/mynode10/master");
+            spec.setBuild("9");
+            spec.setStatus(Statuses.RUNNING);
+            spec.setStartedTimestamp("2019-01-01T09:00:00Z");
+            for (int i = 0; i < stageCount; i++) {
+                StageActivityStep stage = new StageActivityStep();
+                stage.setName("Stage " + i);
+                stage.setStatus(Statuses.PENDING);
+                stage.setStartedTimestamp("2019-01-01T09:00:00Z");
+                PipelineActivityStep step = new PipelineActivityStep();
+                step.setKind("stage");
+                step.setStage(stage);
+                spec.getSteps().add(step);
+            }
+        }
+
+        @Benchmark
+        public boolean yaml() throws Exception {
+            return MarkupUtils.toYaml(spec).equals(MarkupUtils.toYaml(spec));
+        }
+
+        @Benchmark
+        public boolean fingerprint() {
+            return Fingerprints.of(spec) == Fingerprints.of(spec);
+        }
+    }
+
+    private static class SimulatedRun {
+        private final String name;
+        private final long started;
+        private final SyncContext context = new SyncContext(new PollBackoff(1000, 60000));
+        private final List<StageInfo> stages = new ArrayList<>();
+
+        SimulatedRun(String name, long started) {
+            this.name = name;
+            this.started = started;
+        }
+    }
+}
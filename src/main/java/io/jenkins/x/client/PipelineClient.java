@@ -16,6 +16,8 @@
  */
 package io.jenkins.x.client;
 
+import io.fabric8.kubernetes.api.model.ListMeta;
+import io.fabric8.kubernetes.api.model.ObjectMeta;
 import io.fabric8.kubernetes.client.DefaultKubernetesClient;
 import io.fabric8.kubernetes.client.KubernetesClient;
 import io.fabric8.kubernetes.client.KubernetesClientException;
@@ -27,6 +29,7 @@ import io.jenkins.x.client.kube.ClientHelper;
 import io.jenkins.x.client.kube.DoneablePipelineActivities;
 import io.jenkins.x.client.kube.PipelineActivity;
 import io.jenkins.x.client.kube.PipelineActivityList;
+import io.jenkins.x.client.kube.PipelineActivityPage;
 import io.jenkins.x.client.kube.PipelineKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,27 +37,75 @@ import org.slf4j.LoggerFactory;
 import javax.validation.constraints.NotNull;
 import java.io.Closeable;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
 import java.util.Objects;
-import java.util.TreeMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import static io.jenkins.x.client.kube.KubeHelpers.isNewer;
 
 /**
+ * Keeps an up to date cache of the PipelineActivity resources in a namespace and fires events as they change.
+ * <p>
+ * Works like an informer: the resources are listed and then watched from the <code>resourceVersion</code> of the list.
+ * If the watch closes it is reopened from the last <code>resourceVersion</code> we saw, backing off while it keeps
+ * failing. Only if that version is too old for the API server (410 Gone) do we list everything again, firing the
+ * differences between the new list and the cache as ADDED, MODIFIED and DELETED events.
+ * <p>
+ * As the watch is recovered internally listeners are not told when it closes and reopens; their
+ * {@link Watcher#onClose(KubernetesClientException)} is only called once this client is {@link #close() closed}.
+ * <p>
+ * The cache is indexed by owner, repository, branch, status, author and commit so that it can be queried without
+ * looking at every pipeline. Updates to the cache and its indexes are made one at a time while reads never lock.
  */
 public class PipelineClient implements Closeable {
     private static final transient Logger LOG = LoggerFactory.getLogger(PipelineClient.class);
+    private static final long MIN_RECONNECT_DELAY_MS = 1000;
+    private static final long MAX_RECONNECT_DELAY_MS = 30000;
+    public static final int DEFAULT_PAGE_SIZE = 500;
 
     private final NonNamespaceOperation<PipelineActivity, PipelineActivityList, DoneablePipelineActivities, Resource<PipelineActivity, DoneablePipelineActivities>> pipelines;
     private final String namespace;
-    private List<Watcher<PipelineActivity>> listeners = new ArrayList<>();
+    private final KubernetesClient client;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private List<Watcher<PipelineActivity>> listeners = new CopyOnWriteArrayList<>();
     private Watch watcher;
-    private Map<PipelineKey, PipelineActivity> map = new TreeMap<>();
+    private final ConcurrentNavigableMap<PipelineKey, PipelineActivity> map = new ConcurrentSkipListMap<>();
+    private final PipelineIndex index = new PipelineIndex();
+    private final Object writeLock = new Object();
+    private ScheduledExecutorService reconnector;
+    private volatile boolean running;
+    private volatile String resourceVersion;
+    private int watchGeneration;
+    private long watchStartedAt;
+    private long reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
 
     public PipelineClient(NonNamespaceOperation<PipelineActivity, PipelineActivityList, DoneablePipelineActivities, Resource<PipelineActivity, DoneablePipelineActivities>> pipelines, String namespace) {
+        this(pipelines, null, namespace);
+    }
+
+    /**
+     * @param client the client used to list the pipelines in pages or null to list them all at once
+     */
+    public PipelineClient(NonNamespaceOperation<PipelineActivity, PipelineActivityList, DoneablePipelineActivities, Resource<PipelineActivity, DoneablePipelineActivities>> pipelines, KubernetesClient client, String namespace) {
         this.pipelines = pipelines;
+        this.client = client;
         this.namespace = namespace;
     }
 
@@ -66,25 +117,135 @@ public class PipelineClient implements Closeable {
     }
 
     public static PipelineClient newInstance(@NotNull KubernetesClient client, @NotNull String ns) {
-        return new PipelineClient(ClientHelper.pipelineActivityClient(client, ns), ns);
+        return new PipelineClient(ClientHelper.pipelineActivityClient(client, ns), client, ns);
     }
 
     public String getNamespace() {
         return namespace;
     }
 
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Sets the maximum number of pipelines fetched by each request when listing them
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Returns the <code>resourceVersion</code> the watch resumes from
+     */
+    public String getResourceVersion() {
+        return resourceVersion;
+    }
+
+    /**
+     * Stops watching the pipelines and tells the listeners that the watch is closed
+     */
     @Override
     public void close() throws IOException {
+        boolean wasRunning;
+        synchronized (this) {
+            wasRunning = running;
+            running = false;
+            if (reconnector != null) {
+                reconnector.shutdownNow();
+                reconnector = null;
+            }
+        }
         doClose();
+        if (wasRunning) {
+            for (Watcher<PipelineActivity> listener : listeners) {
+                listener.onClose(null);
+            }
+        }
     }
 
 
     /**
-     * Returns the current pipelines objects
+     * Returns a copy of the current pipelines, sorted by pipeline name and newest build first.
+     * <p>
+     * Copying never blocks the watch thread and is weakly consistent: each pipeline is returned at most once in a
+     * state it had at some point during the copy, and changes made while copying may or may not be seen.
      */
     public List<PipelineActivity> getPipelines() {
-        synchronized (map) {
-            return new ArrayList<>(map.values());
+        return new ArrayList<>(map.values());
+    }
+
+    /**
+     * Returns a read only view of the builds of a pipeline, newest first, which is weakly consistent just like
+     * {@link #getPipelines()}
+     *
+     * @param pipeline the full name of the pipeline such as <code>owner/repository/branch</code>
+     */
+    public NavigableMap<PipelineKey, PipelineActivity> getPipelineBuilds(@NotNull String pipeline) {
+        return Collections.unmodifiableNavigableMap(map.subMap(new PipelineKey(pipeline, Integer.MAX_VALUE), true, new PipelineKey(pipeline, 0), true));
+    }
+
+    /**
+     * Returns the activity of the build or null if we have not seen it
+     */
+    public PipelineActivity getPipeline(@NotNull PipelineKey key) {
+        return map.get(key);
+    }
+
+    /**
+     * Returns the pipelines whose field has the given value, newest build first, using the index of the field
+     * rather than looking at every pipeline
+     */
+    public List<PipelineActivity> findPipelines(@NotNull PipelineIndex.Field field, @NotNull String value) {
+        List<PipelineActivity> answer = new ArrayList<>();
+        addMatches(answer, index.getKeys(field, value), field, value::equals);
+        return answer;
+    }
+
+    public List<PipelineActivity> findPipelinesByOwner(@NotNull String owner) {
+        return findPipelines(PipelineIndex.Field.OWNER, owner);
+    }
+
+    public List<PipelineActivity> findPipelinesByRepository(@NotNull String repository) {
+        return findPipelines(PipelineIndex.Field.REPOSITORY, repository);
+    }
+
+    public List<PipelineActivity> findPipelinesByBranch(@NotNull String branch) {
+        return findPipelines(PipelineIndex.Field.BRANCH, branch);
+    }
+
+    public List<PipelineActivity> findPipelinesByStatus(@NotNull String status) {
+        return findPipelines(PipelineIndex.Field.STATUS, status);
+    }
+
+    public List<PipelineActivity> findPipelinesByAuthor(@NotNull String author) {
+        return findPipelines(PipelineIndex.Field.AUTHOR, author);
+    }
+
+    /**
+     * Returns the pipelines which built the commit
+     *
+     * @param sha the full or abbreviated SHA of the commit
+     */
+    public List<PipelineActivity> findPipelinesByCommit(@NotNull String sha) {
+        List<PipelineActivity> answer = new ArrayList<>();
+        for (NavigableSet<PipelineKey> keys : index.getKeysByPrefix(PipelineIndex.Field.COMMIT, sha).values()) {
+            addMatches(answer, keys, PipelineIndex.Field.COMMIT, value -> value.startsWith(sha));
+        }
+        return answer;
+    }
+
+    /**
+     * Adds the pipelines of the keys which still match; an index can briefly hold keys of pipelines which have just
+     * changed as values are indexed before the cache is updated and unindexed after it
+     */
+    private void addMatches(List<PipelineActivity> answer, Collection<PipelineKey> keys, PipelineIndex.Field field, Predicate<String> matcher) {
+        for (PipelineKey key : keys) {
+            PipelineActivity activity = map.get(key);
+            String value = field.getValue(activity);
+            if (value != null && matcher.test(value)) {
+                answer.add(activity);
+            }
         }
     }
 
@@ -108,6 +269,7 @@ public class PipelineClient implements Closeable {
                     start();
                 } catch (Exception e) {
                     LOG.error("Failed to connect to kubernetes: " + e, e);
+                    scheduleReconnect(false);
                 }
             }
         }, "Jenkins X PipelineClient Thread");
@@ -119,64 +281,239 @@ public class PipelineClient implements Closeable {
      */
     public void start() {
         doClose();
+        running = true;
+        relist();
+    }
 
+    /**
+     * Lists all the pipelines a page at a time, firing events for any differences from the cache as each pipeline
+     * is decoded, and then watches for changes from the version of the list
+     */
+    protected void relist() {
+        Set<PipelineKey> listed = new HashSet<>();
+        String listVersion = null;
+        String continueToken = null;
+        do {
+            PipelineActivityPage page = listPage(continueToken, item -> onListed(item, listed));
+            if (listVersion == null) {
+                listVersion = page.getResourceVersion();
+            }
+            continueToken = page.getContinueToken();
+        } while (continueToken != null && !continueToken.isEmpty());
+
+        for (Map.Entry<PipelineKey, PipelineActivity> entry : map.entrySet()) {
+            if (!listed.contains(entry.getKey())) {
+                boolean removed;
+                synchronized (writeLock) {
+                    removed = remove(entry.getKey(), entry.getValue());
+                }
+                if (removed) {
+                    fireEvent(Watcher.Action.DELETED, entry.getValue());
+                }
+            }
+        }
+
+        this.resourceVersion = listVersion;
+        watch();
+    }
+
+    /**
+     * Updates the cache with a pipeline we have just listed, firing an event if it is new or has changed
+     */
+    private void onListed(PipelineActivity item, Set<PipelineKey> listed) {
+        PipelineKey key = PipelineKey.createKey(item);
+        if (key == null) {
+            return;
+        }
+        listed.add(key);
+        PipelineActivity old;
+        synchronized (writeLock) {
+            old = put(key, item);
+        }
+        if (old == null) {
+            fireEvent(Watcher.Action.ADDED, item);
+        } else if (!Objects.equals(getResourceVersion(old), getResourceVersion(item))) {
+            fireEvent(Watcher.Action.MODIFIED, item);
+        }
+    }
+
+    private PipelineActivityPage listPage(String continueToken, Consumer<PipelineActivity> consumer) {
+        if (client != null) {
+            return ClientHelper.listPipelineActivities(client, namespace, pageSize, continueToken, consumer);
+        }
+        PipelineActivityList list = this.pipelines.list();
+        if (list != null && list.getItems() != null) {
+            list.getItems().forEach(consumer);
+        }
+        ListMeta metadata = list != null ? list.getMetadata() : null;
+        return new PipelineActivityPage(Collections.emptyList(), metadata != null ? metadata.getResourceVersion() : null, null, null);
+    }
+
+    /**
+     * Watches for changes from the last version we have seen
+     */
+    protected synchronized void watch() {
+        if (!running) {
+            return;
+        }
+        final int generation = ++watchGeneration;
         Watcher<PipelineActivity> listener = new Watcher<PipelineActivity>() {
             @Override
             public void eventReceived(Action action, PipelineActivity pipelineActivity) {
+                if (!isCurrentWatch(generation)) {
+                    return;
+                }
+                String version = getResourceVersion(pipelineActivity);
+                if (version != null) {
+                    resourceVersion = version;
+                }
                 onEventReceived(action, pipelineActivity);
             }
 
             @Override
             public void onClose(KubernetesClientException e) {
-                // TODO should we start watching again?
-                LOG.warn("Pipeline watcher is closed: " + e, e);
-
-                for (Watcher<PipelineActivity> listener : listeners) {
-                    listener.onClose(e);
+                if (e == null || !isCurrentWatch(generation)) {
+                    // we closed it ourselves
+                    return;
                 }
+                boolean gone = e.getCode() == HttpURLConnection.HTTP_GONE;
+                LOG.warn("Pipeline watcher is closed, " + (gone ? "listing pipelines again: " : "watching again: ") + e);
+                scheduleReconnect(gone);
             }
         };
-        this.watcher = this.pipelines.watch(listener);
-        PipelineActivityList list = this.pipelines.list();
-        if (list != null) {
-            List<PipelineActivity> items = list.getItems();
-            if (items != null) {
-                for (PipelineActivity item : items) {
-                    onEventReceived(Watcher.Action.ADDED, item);
-                }
+        this.watcher = resourceVersion != null ? this.pipelines.watch(resourceVersion, listener) : this.pipelines.watch(listener);
+        this.watchStartedAt = System.currentTimeMillis();
+    }
+
+    private synchronized boolean isCurrentWatch(int generation) {
+        return running && generation == watchGeneration;
+    }
+
+    /**
+     * Reopens the watch, or lists everything again if our version is too old, after a delay which grows while we
+     * keep failing so that an unavailable API server is not hit by a storm of reconnects
+     */
+    protected synchronized void scheduleReconnect(boolean relist) {
+        if (!running) {
+            return;
+        }
+        long delay = nextReconnectDelay();
+        if (reconnector == null) {
+            reconnector = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "Jenkins X PipelineClient Reconnect Thread");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        reconnector.schedule(() -> reconnect(relist), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a random delay between half and all of the current reconnect delay, which doubles after each failure
+     * up to the maximum and starts again from the minimum once a watch has stayed open for a while
+     */
+    protected synchronized long nextReconnectDelay() {
+        if (watchStartedAt > 0 && System.currentTimeMillis() - watchStartedAt > MAX_RECONNECT_DELAY_MS) {
+            // the watch was healthy for a while so this is not a repeated failure
+            reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+        }
+        watchStartedAt = 0;
+        long delay = reconnectDelayMs / 2 + ThreadLocalRandom.current().nextLong(reconnectDelayMs / 2 + 1);
+        reconnectDelayMs = Math.min(MAX_RECONNECT_DELAY_MS, reconnectDelayMs * 2);
+        return delay;
+    }
+
+    private void reconnect(boolean relist) {
+        try {
+            doClose();
+            if (relist || resourceVersion == null) {
+                relist();
+            } else {
+                watch();
             }
+        } catch (KubernetesClientException e) {
+            boolean gone = e.getCode() == HttpURLConnection.HTTP_GONE;
+            LOG.warn("Failed to watch pipelines: " + e);
+            scheduleReconnect(relist || gone);
+        } catch (RuntimeException e) {
+            LOG.error("Failed to watch pipelines: " + e, e);
+            scheduleReconnect(relist);
         }
     }
 
     protected void onEventReceived(Watcher.Action action, PipelineActivity pipelineActivity) {
-        // TODO first lets filter out duplicates after joining the list and watch event stream
         PipelineKey key = PipelineKey.createKey(pipelineActivity);
         if (key == null) {
             return;
         }
 
-        synchronized (map) {
+        synchronized (writeLock) {
             if (action.equals(Watcher.Action.DELETED)) {
-                map.remove(key);
+                PipelineActivity old = map.get(key);
+                if (old == null || !remove(key, old)) {
+                    // we have already seen it deleted
+                    return;
+                }
             } else if (action.equals(Watcher.Action.ADDED) || action.equals(Watcher.Action.MODIFIED)) {
                 PipelineActivity old = map.get(key);
-                if (old == null || isNewer(pipelineActivity, old)) {
-                    map.put(key, pipelineActivity);
-                } else {
-                    // don't fire any more events as this is an old value
+                if (old != null && (!isNewer(pipelineActivity, old) || isSameVersion(pipelineActivity, old))) {
+                    // don't fire any more events as this is an old or duplicate value
                     return;
                 }
+                put(key, pipelineActivity);
             }
         }
+        fireEvent(action, pipelineActivity);
+    }
+
+    /**
+     * Caches the activity and updates the indexes, which must be done holding the write lock. The new values are
+     * indexed before the activity is cached and the old values unindexed after, so that an index always holds the
+     * key of every cached activity with its value
+     *
+     * @return the activity which was replaced or null
+     */
+    private PipelineActivity put(PipelineKey key, PipelineActivity activity) {
+        index.add(key, activity);
+        PipelineActivity old = map.put(key, activity);
+        if (old != null) {
+            index.remove(key, old, activity);
+        }
+        return old;
+    }
 
+    /**
+     * Removes the activity from the cache if it is still the cached one and then from the indexes, which must be
+     * done holding the write lock
+     */
+    private boolean remove(PipelineKey key, PipelineActivity activity) {
+        if (!map.remove(key, activity)) {
+            return false;
+        }
+        index.remove(key, activity, null);
+        return true;
+    }
+
+    private void fireEvent(Watcher.Action action, PipelineActivity activity) {
         for (Watcher<PipelineActivity> listener : listeners) {
-            listener.eventReceived(action, pipelineActivity);
+            listener.eventReceived(action, activity);
         }
     }
 
+    private static boolean isSameVersion(PipelineActivity a, PipelineActivity b) {
+        String version = getResourceVersion(a);
+        return version != null && version.equals(getResourceVersion(b));
+    }
+
+    private static String getResourceVersion(PipelineActivity activity) {
+        ObjectMeta metadata = activity.getMetadata();
+        return metadata != null ? metadata.getResourceVersion() : null;
+    }
 
-    protected void doClose() {
+    protected synchronized void doClose() {
         if (this.watcher != null) {
+            // bump the generation first so that we ignore the close event of the old watch
+            watchGeneration++;
             this.watcher.close();
             this.watcher = null;
         }
@@ -0,0 +1,132 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jenkins.x.client;
+
+import io.jenkins.x.client.kube.PipelineActivity;
+import io.jenkins.x.client.kube.PipelineActivitySpec;
+import io.jenkins.x.client.kube.PipelineKey;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+
+/**
+ * Secondary indexes of the {@link PipelineKey}s of the cached pipelines by fields of their
+ * {@link PipelineActivitySpec}.
+ * <p>
+ * Each index is a sorted map from a field value to the keys of the pipelines with that value, newest build first,
+ * so a lookup is O(log n) and lookups by prefix are possible. Updates must be made by one thread at a time but the
+ * indexes can be read concurrently without locking.
+ */
+public class PipelineIndex {
+
+    public enum Field {
+        OWNER(PipelineActivitySpec::getGitOwner),
+        REPOSITORY(PipelineActivitySpec::getGitRepository),
+        BRANCH(PipelineActivitySpec::getGitBranch),
+        STATUS(PipelineActivitySpec::getStatus),
+        AUTHOR(PipelineActivitySpec::getAuthor),
+        COMMIT(PipelineActivitySpec::getLastCommitSHA);
+
+        private final Function<PipelineActivitySpec, String> getter;
+
+        Field(Function<PipelineActivitySpec, String> getter) {
+            this.getter = getter;
+        }
+
+        /**
+         * Returns the value of this field of the activity or null if it has none
+         */
+        public String getValue(PipelineActivity activity) {
+            PipelineActivitySpec spec = activity != null ? activity.getSpec() : null;
+            String value = spec != null ? getter.apply(spec) : null;
+            return value != null && !value.isEmpty() ? value : null;
+        }
+    }
+
+    private final Map<Field, ConcurrentNavigableMap<String, NavigableSet<PipelineKey>>> indexes = new EnumMap<>(Field.class);
+
+    public PipelineIndex() {
+        for (Field field : Field.values()) {
+            indexes.put(field, new ConcurrentSkipListMap<>());
+        }
+    }
+
+    /**
+     * Indexes the key under each field value of the activity
+     */
+    public void add(PipelineKey key, PipelineActivity activity) {
+        for (Field field : Field.values()) {
+            String value = field.getValue(activity);
+            if (value != null) {
+                indexes.get(field).computeIfAbsent(value, v -> new ConcurrentSkipListSet<>()).add(key);
+            }
+        }
+    }
+
+    /**
+     * Removes the key from the field values of the old activity which it no longer has
+     *
+     * @param current the activity which replaced the old one or null if it was deleted
+     */
+    public void remove(PipelineKey key, PipelineActivity old, PipelineActivity current) {
+        for (Field field : Field.values()) {
+            String value = field.getValue(old);
+            if (value == null || value.equals(field.getValue(current))) {
+                continue;
+            }
+            ConcurrentNavigableMap<String, NavigableSet<PipelineKey>> index = indexes.get(field);
+            NavigableSet<PipelineKey> keys = index.get(value);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    index.remove(value, keys);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a read only view of the keys of the pipelines with the given value, newest build first
+     */
+    public NavigableSet<PipelineKey> getKeys(Field field, String value) {
+        NavigableSet<PipelineKey> keys = indexes.get(field).get(value);
+        return keys != null ? Collections.unmodifiableNavigableSet(keys) : Collections.emptyNavigableSet();
+    }
+
+    /**
+     * Returns a read only view of the key sets of the values which start with the given prefix, such as an
+     * abbreviated commit SHA
+     */
+    public Map<String, NavigableSet<PipelineKey>> getKeysByPrefix(Field field, String prefix) {
+        Objects.requireNonNull(prefix);
+        return Collections.unmodifiableMap(indexes.get(field).subMap(prefix, true, prefix + Character.MAX_VALUE, false));
+    }
+
+    /**
+     * Returns the number of distinct values of the field
+     */
+    public int getValueCount(Field field) {
+        return indexes.get(field).size();
+    }
+}
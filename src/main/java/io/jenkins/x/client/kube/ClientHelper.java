@@ -1,26 +1,204 @@
 package io.jenkins.x.client.kube;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import io.fabric8.kubernetes.api.model.Status;
 import io.fabric8.kubernetes.api.model.apiextensions.CustomResourceDefinition;
 import io.fabric8.kubernetes.api.model.apiextensions.CustomResourceDefinitionBuilder;
+import io.fabric8.kubernetes.client.HttpClientAware;
 import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
 import io.fabric8.kubernetes.client.dsl.NonNamespaceOperation;
 import io.fabric8.kubernetes.client.dsl.Resource;
+import io.fabric8.kubernetes.client.utils.Serialization;
+import io.fabric8.kubernetes.client.utils.URLUtils;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
 
 public class ClientHelper {
 
     public static final String JENKINS_CRD_GROUP = "jenkins.io";
-    public static final String PIPELINE_ACTIVITIES_CRD_NAME = "pipelineactivities." + JENKINS_CRD_GROUP;
+    public static final String JENKINS_CRD_VERSION = "v1";
+    public static final String PIPELINE_ACTIVITIES_PLURAL = "pipelineactivities";
+    public static final String PIPELINE_ACTIVITIES_CRD_NAME = PIPELINE_ACTIVITIES_PLURAL + "." + JENKINS_CRD_GROUP;
+
+    private static final MediaType MERGE_PATCH = MediaType.parse("application/merge-patch+json");
 
     public static NonNamespaceOperation<PipelineActivity, PipelineActivityList, DoneablePipelineActivities, Resource<PipelineActivity, DoneablePipelineActivities>> pipelineActivityClient(KubernetesClient client, String namespace) {
         CustomResourceDefinition runCRD = new CustomResourceDefinitionBuilder().
             withApiVersion("apiextensions.k8s.io/v1beta1").
             withNewMetadata().withName(PIPELINE_ACTIVITIES_CRD_NAME).endMetadata().
-            withNewSpec().withGroup(JENKINS_CRD_GROUP).withVersion("v1").withScope("Namespaced").
-            withNewNames().withKind("PipelineActivity").withShortNames("pipelineactivity", "activity", "act").withPlural("pipelineactivities").endNames().endSpec().
+            withNewSpec().withGroup(JENKINS_CRD_GROUP).withVersion(JENKINS_CRD_VERSION).withScope("Namespaced").
+            withNewNames().withKind("PipelineActivity").withShortNames("pipelineactivity", "activity", "act").withPlural(PIPELINE_ACTIVITIES_PLURAL).endNames().endSpec().
             build();
         return client.customResources(runCRD, PipelineActivity.class, PipelineActivityList.class, DoneablePipelineActivities.class).inNamespace(namespace);
     }
 
+    /**
+     * Applies the given JSON merge patch to a PipelineActivity.
+     * <p>
+     * Custom resources do not support strategic merge patches so we send a plain JSON merge patch; if the patch
+     * contains <code>metadata.resourceVersion</code> the API server rejects it with a 409 if the activity has been
+     * modified since that version.
+     *
+     * @param client    the kubernetes client
+     * @param namespace the namespace of the activity
+     * @param name      the name of the activity
+     * @param patch     the JSON merge patch
+     * @return the updated activity
+     */
+    public static PipelineActivity patchPipelineActivity(KubernetesClient client, String namespace, String name, JsonNode patch) {
+        if (!(client instanceof HttpClientAware)) {
+            throw new IllegalArgumentException("Cannot patch resources using client " + client);
+        }
+        OkHttpClient httpClient = ((HttpClientAware) client).getHttpClient();
+        String url = URLUtils.join(client.getMasterUrl().toString(), "apis", JENKINS_CRD_GROUP, JENKINS_CRD_VERSION,
+                "namespaces", namespace, PIPELINE_ACTIVITIES_PLURAL, name);
+        try {
+            RequestBody body = RequestBody.create(MERGE_PATCH, Serialization.jsonMapper().writeValueAsBytes(patch));
+            Request request = new Request.Builder().url(url).patch(body).build();
+            try (Response response = httpClient.newCall(request).execute()) {
+                ResponseBody responseBody = response.body();
+                String json = responseBody != null ? responseBody.string() : "";
+                if (!response.isSuccessful()) {
+                    throw new KubernetesClientException("Failure executing: PATCH at: " + url + ". Message: " + response.message() + ".",
+                            response.code(), parseStatus(json));
+                }
+                return Serialization.jsonMapper().readValue(json, PipelineActivity.class);
+            }
+        } catch (IOException e) {
+            throw KubernetesClientException.launderThrowable(e);
+        }
+    }
+
+    /**
+     * Lists one page of the PipelineActivity resources in the namespace so that large namespaces can be listed
+     * without holding every activity in memory at once.
+     * <p>
+     * If the continue token has expired the API server responds with a 410 and the list has to be started again.
+     *
+     * @param client        the kubernetes client
+     * @param namespace     the namespace of the activities
+     * @param limit         the maximum number of activities to return
+     * @param continueToken the token from the previous page or null for the first page
+     * @return the page of activities
+     */
+    public static PipelineActivityPage listPipelineActivities(KubernetesClient client, String namespace, int limit, String continueToken) {
+        List<PipelineActivity> items = new ArrayList<>();
+        PipelineActivityPage page = listPipelineActivities(client, namespace, limit, continueToken, items::add);
+        return new PipelineActivityPage(items, page.getResourceVersion(), page.getContinueToken(), page.getRemainingItemCount());
+    }
+
+    /**
+     * Lists one page of the PipelineActivity resources in the namespace, decoding the response as it streams in so
+     * that each activity is passed to the consumer as soon as it is parsed and only one activity is held in memory
+     * at a time
+     *
+     * @param client        the kubernetes client
+     * @param namespace     the namespace of the activities
+     * @param limit         the maximum number of activities to return or 0 for all of them
+     * @param continueToken the token from the previous page or null for the first page
+     * @param consumer      is passed each activity in the page
+     * @return the page without its items
+     */
+    public static PipelineActivityPage listPipelineActivities(KubernetesClient client, String namespace, int limit, String continueToken, Consumer<PipelineActivity> consumer) {
+        if (!(client instanceof HttpClientAware)) {
+            throw new IllegalArgumentException("Cannot list resources using client " + client);
+        }
+        OkHttpClient httpClient = ((HttpClientAware) client).getHttpClient();
+        HttpUrl.Builder urlBuilder = HttpUrl.parse(URLUtils.join(client.getMasterUrl().toString(), "apis", JENKINS_CRD_GROUP, JENKINS_CRD_VERSION,
+                "namespaces", namespace, PIPELINE_ACTIVITIES_PLURAL)).newBuilder();
+        if (limit > 0) {
+            urlBuilder.addQueryParameter("limit", Integer.toString(limit));
+        }
+        if (continueToken != null && !continueToken.isEmpty()) {
+            urlBuilder.addQueryParameter("continue", continueToken);
+        }
+        HttpUrl url = urlBuilder.build();
+        Request request = new Request.Builder().url(url).get().build();
+        try (Response response = httpClient.newCall(request).execute()) {
+            ResponseBody responseBody = response.body();
+            if (!response.isSuccessful()) {
+                String json = responseBody != null ? responseBody.string() : "";
+                throw new KubernetesClientException("Failure executing: GET at: " + url + ". Message: " + response.message() + ".",
+                        response.code(), parseStatus(json));
+            }
+            if (responseBody == null) {
+                return new PipelineActivityPage(Collections.emptyList(), null, null, null);
+            }
+            try (InputStream in = responseBody.byteStream()) {
+                return readPipelineActivityList(in, consumer);
+            }
+        } catch (IOException e) {
+            throw KubernetesClientException.launderThrowable(e);
+        }
+    }
+
+    /**
+     * Decodes a PipelineActivityList from the stream, passing each of its items to the consumer as soon as it is
+     * parsed rather than building the whole list
+     *
+     * @return the page without its items
+     */
+    public static PipelineActivityPage readPipelineActivityList(InputStream in, Consumer<PipelineActivity> consumer) throws IOException {
+        ObjectMapper mapper = Serialization.jsonMapper();
+        // newer versions of the CRD may add fields we don't know about yet
+        ObjectReader reader = mapper.readerFor(PipelineActivity.class).without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        String resourceVersion = null;
+        String continueToken = null;
+        Long remainingItemCount = null;
+        try (JsonParser parser = mapper.getFactory().createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected a PipelineActivityList object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("items".equals(field) && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        consumer.accept(reader.readValue(parser));
+                    }
+                } else if ("metadata".equals(field) && token == JsonToken.START_OBJECT) {
+                    JsonNode metadata = mapper.readTree(parser);
+                    resourceVersion = metadata.path("resourceVersion").asText(null);
+                    continueToken = metadata.path("continue").asText(null);
+                    JsonNode remaining = metadata.get("remainingItemCount");
+                    if (remaining != null && remaining.canConvertToLong()) {
+                        remainingItemCount = remaining.asLong();
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return new PipelineActivityPage(Collections.emptyList(), resourceVersion, continueToken, remainingItemCount);
+    }
+
+    private static Status parseStatus(String json) {
+        try {
+            return Serialization.jsonMapper().readValue(json, Status.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     private ClientHelper() {}
 
 }
@@ -0,0 +1,209 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jenkins.x.client.kube;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes a 64 bit structural fingerprint of a {@link PipelineActivitySpec} and its steps so that we can cheaply
+ * detect whether anything has changed without serializing the spec.
+ * <p>
+ * The fingerprint is built from 64 bit hashes of the contents of the fields rather than their 32 bit hash codes,
+ * so that values like <code>"Aa"</code> and <code>"BB"</code> which share a hash code still change the fingerprint.
+ * It does not allocate any objects when the lists are indexed lists like {@link java.util.ArrayList} and there are
+ * no additional properties
+ */
+public class Fingerprints {
+    private static final long SEED = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+    private static final int NULL_HASH = 0x9e3779b9;
+
+    /**
+     * Returns the fingerprint of the given spec
+     *
+     * @param spec the spec which may be null
+     * @return the fingerprint
+     */
+    public static long of(PipelineActivitySpec spec) {
+        long h = SEED;
+        if (spec == null) {
+            return mix(h, NULL_HASH);
+        }
+        h = mix(h, spec.getPipeline());
+        h = mix(h, spec.getBuild());
+        h = mix(h, spec.getVersion());
+        h = mix(h, spec.getStatus());
+        h = mix(h, spec.getStartedTimestamp());
+        h = mix(h, spec.getCompletedTimestamp());
+        h = mix(h, spec.getBuildUrl());
+        h = mix(h, spec.getBuildLogsUrl());
+        h = mix(h, spec.getGitUrl());
+        h = mix(h, spec.getGitRepository());
+        h = mix(h, spec.getGitOwner());
+        h = mix(h, spec.getGitBranch());
+        h = mix(h, spec.getAuthor());
+        h = mix(h, spec.getPullTitle());
+        h = mix(h, spec.getReleaseNotesUrl());
+        h = mix(h, spec.getLastCommitSHA());
+        h = mix(h, spec.getLastCommitMessage());
+        h = mix(h, spec.getLastCommitURL());
+        h = mix(h, spec.getContext());
+        h = mix(h, spec.getBaseSHA());
+        h = mixSteps(h, spec.getSteps());
+        List<PipelineAttachment> attachments = spec.getAttachments();
+        if (attachments != null) {
+            for (int i = 0, size = attachments.size(); i < size; i++) {
+                PipelineAttachment attachment = attachments.get(i);
+                if (attachment == null) {
+                    h = mix(h, NULL_HASH);
+                    continue;
+                }
+                h = mix(h, attachment.getName());
+                h = mixStrings(h, attachment.getUrls());
+                h = mix(h, attachment.getAdditionalProperties());
+            }
+        }
+        return mix(h, spec.getAdditionalProperties());
+    }
+
+    private static long mixSteps(long h, List<PipelineActivityStep> steps) {
+        if (steps == null) {
+            return mix(h, NULL_HASH);
+        }
+        h = mix(h, steps.size());
+        for (int i = 0, size = steps.size(); i < size; i++) {
+            h = mix(h, steps.get(i));
+        }
+        return h;
+    }
+
+    private static long mix(long h, PipelineActivityStep step) {
+        if (step == null) {
+            return mix(h, NULL_HASH);
+        }
+        h = mix(h, step.getKind());
+        StageActivityStep stage = step.getStage();
+        if (stage != null) {
+            h = mix(h, (CoreActivityStep) stage);
+            h = mixSteps(h, stage.getSteps());
+        }
+        PromoteActivityStep promote = step.getPromote();
+        if (promote != null) {
+            h = mix(h, (CoreActivityStep) promote);
+            h = mix(h, promote.getEnvironment());
+            h = mix(h, promote.getApplicationURL());
+            PromotePullRequestStep pullRequest = promote.getPullRequest();
+            if (pullRequest != null) {
+                h = mix(h, pullRequest);
+                h = mix(h, pullRequest.getPullRequestURL());
+                h = mix(h, pullRequest.getMergeCommitSHA());
+            }
+            PromoteUpdateStep update = promote.getUpdate();
+            if (update != null) {
+                h = mix(h, update);
+                List<GitStatus> statuses = update.getStatuses();
+                if (statuses != null) {
+                    for (int i = 0, size = statuses.size(); i < size; i++) {
+                        GitStatus status = statuses.get(i);
+                        h = mix(h, status.getUrl());
+                        h = mix(h, status.getStatus());
+                    }
+                }
+            }
+        }
+        PreviewActivityStep preview = step.getPreview();
+        if (preview != null) {
+            h = mix(h, (CoreActivityStep) preview);
+            h = mix(h, preview.getEnvironment());
+            h = mix(h, preview.getPullRequestURL());
+            h = mix(h, preview.getApplicationURL());
+        }
+        return h;
+    }
+
+    private static long mix(long h, CoreActivityStep step) {
+        h = mix(h, step.getName());
+        h = mix(h, step.getDescription());
+        h = mix(h, step.getStatus());
+        h = mix(h, step.getStartedTimestamp());
+        h = mix(h, step.getCompletedTimestamp());
+        return mix(h, step.getAdditionalProperties());
+    }
+
+    private static long mixStrings(long h, List<String> values) {
+        if (values == null) {
+            return mix(h, NULL_HASH);
+        }
+        h = mix(h, values.size());
+        for (int i = 0, size = values.size(); i < size; i++) {
+            h = mix(h, values.get(i));
+        }
+        return h;
+    }
+
+    private static long mix(long h, Map<String, Object> map) {
+        if (map == null || map.isEmpty()) {
+            return mix(h, NULL_HASH);
+        }
+        // sum the entries so that the fingerprint does not depend on the iteration order of the map
+        long entries = 0;
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            entries += mixValue(mix(SEED, entry.getKey()), entry.getValue());
+        }
+        return mix(mix(h, map.size()), entries);
+    }
+
+    private static long mixValue(long h, Object value) {
+        if (value instanceof String) {
+            return mix(h, (String) value);
+        }
+        return mix(h, value != null ? value.hashCode() : NULL_HASH);
+    }
+
+    private static long mix(long h, String value) {
+        if (value == null) {
+            return mix(h, NULL_HASH);
+        }
+        // lets mix in the length too to reduce the chance of two values of a field having the same hash
+        return mix(mix(h, value.length()), hash(value));
+    }
+
+    /**
+     * Returns the 64 bit FNV-1a hash of the characters of the string
+     */
+    private static long hash(String value) {
+        long h = SEED;
+        for (int i = 0, length = value.length(); i < length; i++) {
+            h ^= value.charAt(i);
+            h *= PRIME;
+        }
+        return h;
+    }
+
+    private static long mix(long h, int value) {
+        h ^= value;
+        h *= PRIME;
+        return h ^ (h >>> 32);
+    }
+
+    private static long mix(long h, long value) {
+        h ^= value;
+        h *= PRIME;
+        return h ^ (h >>> 32);
+    }
+}
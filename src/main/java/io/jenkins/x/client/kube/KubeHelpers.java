@@ -18,6 +18,7 @@ package io.jenkins.x.client.kube;
 
 import io.fabric8.kubernetes.api.model.HasMetadata;
 import io.fabric8.kubernetes.api.model.ObjectMeta;
+import io.fabric8.kubernetes.client.KubernetesClientException;
 
 import static io.jenkins.x.client.util.Strings.notEmpty;
 
@@ -52,4 +53,13 @@ public class KubeHelpers {
         }
         return 0;
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns true if the failure is likely to go away if the request is tried again later, such as when the API
+     * server could not be reached, is overloaded or failed internally
+     */
+    public static boolean isRetriable(KubernetesClientException e) {
+        int code = e.getCode();
+        return code <= 0 || code == 429 || code >= 500;
+    }
+}
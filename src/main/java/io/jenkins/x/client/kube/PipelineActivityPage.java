@@ -0,0 +1,66 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jenkins.x.client.kube;
+
+import java.util.List;
+
+/**
+ * A page of PipelineActivity resources returned by a chunked list
+ */
+public class PipelineActivityPage {
+    private final List<PipelineActivity> items;
+    private final String resourceVersion;
+    private final String continueToken;
+    private final Long remainingItemCount;
+
+    public PipelineActivityPage(List<PipelineActivity> items, String resourceVersion, String continueToken, Long remainingItemCount) {
+        this.items = items;
+        this.resourceVersion = resourceVersion;
+        this.continueToken = continueToken;
+        this.remainingItemCount = remainingItemCount;
+    }
+
+    public List<PipelineActivity> getItems() {
+        return items;
+    }
+
+    /**
+     * Returns the <code>resourceVersion</code> of the list which is the same for every page of it
+     */
+    public String getResourceVersion() {
+        return resourceVersion;
+    }
+
+    /**
+     * Returns the token to fetch the next page with or null if this is the last page
+     */
+    public String getContinueToken() {
+        return continueToken;
+    }
+
+    /**
+     * Returns the number of items after this page if the API server says, which it only does for lists without
+     * selectors from Kubernetes 1.15 onwards, otherwise null
+     */
+    public Long getRemainingItemCount() {
+        return remainingItemCount;
+    }
+
+    public boolean hasMore() {
+        return continueToken != null && !continueToken.isEmpty();
+    }
+}
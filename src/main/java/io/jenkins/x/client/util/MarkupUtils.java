@@ -25,10 +25,10 @@ import java.io.IOException;
 /**
  */
 public class MarkupUtils {
+    private static final ObjectMapper yamlMapper = createYamlObjectMapper();
 
     public static String toYaml(Object data) throws IOException {
-        ObjectMapper mapper = createYamlObjectMapper();
-        return mapper.writeValueAsString(data);
+        return yamlMapper.writeValueAsString(data);
     }
 
     public static ObjectMapper createYamlObjectMapper() {
@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jenkins.x.client.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Helper methods for creating <a href="https://tools.ietf.org/html/rfc7396">JSON merge patches</a>
+ */
+public class MergePatch {
+
+    /**
+     * Returns the JSON merge patch which turns the source document into the target document.
+     * <p>
+     * Objects are diffed field by field whereas any other changed value, including arrays, is replaced as a whole
+     *
+     * @param source the original document
+     * @param target the updated document
+     * @return the merge patch which is an empty object if the documents are the same
+     */
+    public static ObjectNode diff(JsonNode source, JsonNode target) {
+        ObjectNode patch = JsonNodeFactory.instance.objectNode();
+        Iterator<Map.Entry<String, JsonNode>> iter = target.fields();
+        while (iter.hasNext()) {
+            Map.Entry<String, JsonNode> entry = iter.next();
+            String name = entry.getKey();
+            JsonNode value = entry.getValue();
+            JsonNode oldValue = source.get(name);
+            if (oldValue == null || !oldValue.equals(value)) {
+                if (oldValue != null && oldValue.isObject() && value.isObject()) {
+                    patch.set(name, diff(oldValue, value));
+                } else {
+                    patch.set(name, value);
+                }
+            }
+        }
+        Iterator<String> names = source.fieldNames();
+        while (names.hasNext()) {
+            String name = names.next();
+            if (!target.has(name)) {
+                patch.putNull(name);
+            }
+        }
+        return patch;
+    }
+}
@@ -0,0 +1,242 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.fabric8.kubernetes.client.utils.Serialization;
+import io.jenkins.x.client.kube.PipelineActivity;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.WARNING;
+
+/**
+ * A durable journal of the PipelineActivity states which we could not write to the API server.
+ * <p>
+ * Each state is appended to a file of JSON lines and only the latest state of each activity is kept in memory. Once
+ * an activity has been written to the API server it is acknowledged with a tombstone line and the file is compacted
+ * when most of its lines are stale, so the journal only ever holds roughly the activities which are still pending.
+ * The journal is loaded again on startup so that pending states survive a restart of Jenkins.
+ */
+public class ActivityOutbox {
+    private static final Logger logger = Logger.getLogger(ActivityOutbox.class.getName());
+    private static final int MIN_COMPACT_LINES = 64;
+
+    private final Path file;
+    private final ObjectMapper mapper = Serialization.jsonMapper();
+    private final Map<String, Entry> pending = new LinkedHashMap<>();
+    private long lastSeq;
+    private int lineCount;
+
+    public ActivityOutbox(File file) {
+        this.file = file.toPath();
+    }
+
+    /**
+     * Loads the pending states from the journal file, ignoring a partially written last line
+     */
+    public synchronized void load() throws IOException {
+        pending.clear();
+        lineCount = 0;
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                JsonNode record;
+                try {
+                    record = mapper.readTree(line);
+                } catch (IOException e) {
+                    logger.log(WARNING, "Ignoring corrupt line in " + file + ": " + e);
+                    continue;
+                }
+                String name = record.path("name").asText();
+                long seq = record.path("seq").asLong();
+                lastSeq = Math.max(lastSeq, seq);
+                JsonNode activity = record.get("activity");
+                if (activity instanceof ObjectNode) {
+                    pending.put(name, new Entry(name, seq, (ObjectNode) activity, record.path("fromServerCopy").asBoolean()));
+                } else {
+                    Entry entry = pending.get(name);
+                    if (entry != null && entry.seq <= seq) {
+                        pending.remove(name);
+                    }
+                }
+            }
+        }
+        compact();
+    }
+
+    /**
+     * Journals the desired state of an activity which was not based on a copy from the API server, replacing any
+     * earlier pending state of the same activity
+     *
+     * @param name     the name of the activity
+     * @param activity the state to write to the API server
+     * @return the sequence number of the journaled state
+     */
+    public long append(String name, PipelineActivity activity) throws IOException {
+        return append(name, activity, false);
+    }
+
+    /**
+     * Journals the desired state of an activity, replacing any earlier pending state of the same activity
+     *
+     * @param name           the name of the activity
+     * @param activity       the state to write to the API server
+     * @param fromServerCopy whether the state was applied to a copy of the activity read from the API server rather
+     *                       than to a new activity because the API server could not be reached
+     * @return the sequence number of the journaled state
+     */
+    public synchronized long append(String name, PipelineActivity activity, boolean fromServerCopy) throws IOException {
+        ObjectNode json = mapper.valueToTree(activity);
+        Entry entry = new Entry(name, ++lastSeq, json, fromServerCopy);
+        writeLine(createRecord(entry));
+        pending.remove(name);
+        pending.put(name, entry);
+        return entry.seq;
+    }
+
+    /**
+     * Acknowledges that the journaled state has been written to the API server
+     *
+     * @param name the name of the activity
+     * @param seq  the sequence number of the state which was written
+     * @return false if a newer state of the activity has been journaled since which is still pending
+     */
+    public synchronized boolean acknowledge(String name, long seq) throws IOException {
+        Entry entry = pending.get(name);
+        if (entry == null || entry.seq != seq) {
+            return entry == null;
+        }
+        pending.remove(name);
+        if (pending.isEmpty() || lineCount >= Math.max(MIN_COMPACT_LINES, pending.size() * 4)) {
+            compact();
+        } else {
+            ObjectNode record = mapper.createObjectNode();
+            record.put("seq", seq);
+            record.put("name", name);
+            writeLine(record);
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if there is a pending state for the given activity
+     */
+    public synchronized boolean contains(String name) {
+        return pending.containsKey(name);
+    }
+
+    /**
+     * Returns the pending states in the order they were journaled
+     */
+    public synchronized List<Entry> getPending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Rewrites the journal with just the pending states
+     */
+    protected void compact() throws IOException {
+        if (pending.isEmpty()) {
+            Files.deleteIfExists(file);
+            lineCount = 0;
+            return;
+        }
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Entry entry : pending.values()) {
+                channel.write(toLine(createRecord(entry)));
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lineCount = pending.size();
+    }
+
+    private ObjectNode createRecord(Entry entry) {
+        ObjectNode record = mapper.createObjectNode();
+        record.put("seq", entry.seq);
+        record.put("name", entry.name);
+        record.put("fromServerCopy", entry.fromServerCopy);
+        record.set("activity", entry.json);
+        return record;
+    }
+
+    private void writeLine(ObjectNode record) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(toLine(record));
+            channel.force(false);
+        }
+        lineCount++;
+    }
+
+    private ByteBuffer toLine(ObjectNode record) throws IOException {
+        return ByteBuffer.wrap((mapper.writeValueAsString(record) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A journaled state of an activity
+     */
+    public static class Entry {
+        private final String name;
+        private final long seq;
+        private final ObjectNode json;
+        private final boolean fromServerCopy;
+
+        Entry(String name, long seq, ObjectNode json, boolean fromServerCopy) {
+            this.name = name;
+            this.seq = seq;
+            this.json = json;
+            this.fromServerCopy = fromServerCopy;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        /**
+         * Returns the JSON of the activity; callers must not modify it
+         */
+        public ObjectNode getJson() {
+            return json;
+        }
+
+        /**
+         * Returns true if the state was applied to a copy of the activity from the API server; otherwise it is a
+         * snapshot of just the run which knows nothing about steps written by others such as promotions
+         */
+        public boolean isFromServerCopy() {
+            return fromServerCopy;
+        }
+    }
+}
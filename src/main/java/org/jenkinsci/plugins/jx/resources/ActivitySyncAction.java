@@ -0,0 +1,79 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import hudson.XmlFile;
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Remembers the PipelineActivity we last wrote for a run so that we can carry on syncing the run after Jenkins
+ * restarts without loading its activity from the API server when nothing has changed.
+ * <p>
+ * As it changes on every write it is saved in its own small file in the build directory rather than with the whole
+ * run; older builds may still have it as an action of the run.
+ */
+public class ActivitySyncAction extends InvisibleAction {
+    private static final String FILE_NAME = "jx-activity-sync.xml";
+
+    private final String activityName;
+    private volatile String resourceVersion;
+    private volatile long fingerprint;
+
+    public ActivitySyncAction(String activityName) {
+        this.activityName = activityName;
+    }
+
+    /**
+     * Loads what we last wrote for the run or returns null if we have not written its activity
+     */
+    public static ActivitySyncAction load(Run run) throws IOException {
+        XmlFile file = getFile(run);
+        if (file.exists()) {
+            Object answer = file.read();
+            if (answer instanceof ActivitySyncAction) {
+                return (ActivitySyncAction) answer;
+            }
+        }
+        return run.getAction(ActivitySyncAction.class);
+    }
+
+    /**
+     * Saves what we last wrote for the run
+     */
+    public void save(Run run) throws IOException {
+        getFile(run).write(this);
+    }
+
+    private static XmlFile getFile(Run run) {
+        return new XmlFile(Run.XSTREAM, new File(run.getRootDir(), FILE_NAME));
+    }
+
+    public String getActivityName() {
+        return activityName;
+    }
+
+    /**
+     * Returns the <code>resourceVersion</code> of the activity after our last write
+     */
+    public String getResourceVersion() {
+        return resourceVersion;
+    }
+
+    public void setResourceVersion(String resourceVersion) {
+        this.resourceVersion = resourceVersion;
+    }
+
+    /**
+     * Returns the {@link io.jenkins.x.client.kube.Fingerprints fingerprint} of the spec of the activity after our
+     * last write
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(long fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+}
@@ -0,0 +1,136 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import hudson.model.Run;
+import hudson.triggers.SafeTimerTask;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A write-behind queue of runs whose PipelineActivity needs to be synced.
+ * <p>
+ * Each run maps to exactly one PipelineActivity so all of the requests to sync a run which arrive before it is
+ * flushed are coalesced into a single sync; a request is flushed at most <code>maxFlushDelayMs</code> after it was
+ * submitted or straight away if it is submitted with <code>flushNow</code> such as when a run completes.
+ * <p>
+ * Syncs run on dedicated sync workers rather than on the Jenkins build threads or the shared {@link jenkins.util.Timer}
+ * pool so that a slow API server never blocks builds or other plugins. Each worker is a single thread and every run
+ * is always synced by the same worker, chosen from the hash of the run id, so that different runs are synced in
+ * parallel while the updates of a single run stay strictly in order. As requests are coalesced each worker queue
+ * holds at most one flush per run.
+ */
+public class ActivitySyncQueue {
+    private final Map<Run, Flush> pending = new ConcurrentHashMap<>();
+    private final Consumer<Run> syncer;
+    private final ScheduledThreadPoolExecutor[] workers;
+    private volatile long maxFlushDelayMs;
+
+    public ActivitySyncQueue(Consumer<Run> syncer, long maxFlushDelayMs, int workerCount) {
+        this.syncer = syncer;
+        this.maxFlushDelayMs = maxFlushDelayMs;
+        this.workers = new ScheduledThreadPoolExecutor[Math.max(1, workerCount)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new ScheduledThreadPoolExecutor(1, new NamingThreadFactory(new DaemonThreadFactory(), "jx-resources-sync-" + i));
+            workers[i].setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    /**
+     * Requests that the activity of the run is synced
+     *
+     * @param run      the run to sync
+     * @param flushNow whether to sync as soon as possible rather than waiting for other changes to coalesce
+     */
+    public void submit(Run run, boolean flushNow) {
+        submit(run, flushNow ? 0 : maxFlushDelayMs);
+    }
+
+    /**
+     * Requests that the activity of the run is synced after the given delay unless a sync of the run is already
+     * due sooner
+     *
+     * @param run   the run to sync
+     * @param delay the maximum delay in milliseconds before the run is synced
+     */
+    public void submit(Run run, final long delay) {
+        ScheduledExecutorService worker = getWorker(run);
+        if (worker.isShutdown()) {
+            return;
+        }
+        final long deadline = System.currentTimeMillis() + delay;
+        final Flush[] scheduled = new Flush[1];
+        pending.compute(run, (r, current) -> {
+            if (current != null && current.deadline <= deadline) {
+                return current;
+            }
+            scheduled[0] = new Flush(r, deadline);
+            return scheduled[0];
+        });
+        if (scheduled[0] != null) {
+            worker.schedule(scheduled[0], delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns the number of runs waiting to be synced
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    public long getMaxFlushDelayMs() {
+        return maxFlushDelayMs;
+    }
+
+    public void setMaxFlushDelayMs(long maxFlushDelayMs) {
+        this.maxFlushDelayMs = maxFlushDelayMs;
+    }
+
+    /**
+     * Returns the number of sync workers
+     */
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    /**
+     * Returns the worker which syncs the given run
+     */
+    public ScheduledExecutorService getWorker(Run run) {
+        return workers[Math.floorMod(run.getExternalizableId().hashCode(), workers.length)];
+    }
+
+    /**
+     * Stops syncing; any pending syncs are discarded
+     */
+    public void shutdown() {
+        for (ScheduledThreadPoolExecutor worker : workers) {
+            worker.shutdownNow();
+        }
+        pending.clear();
+    }
+
+    private class Flush extends SafeTimerTask {
+        private final Run run;
+        private final long deadline;
+
+        Flush(Run run, long deadline) {
+            this.run = run;
+            this.deadline = deadline;
+        }
+
+        @Override
+        protected void doRun() throws Exception {
+            // if a more urgent flush replaced us then it has already synced the run
+            if (pending.remove(run, this)) {
+                syncer.accept(run);
+            }
+        }
+    }
+}
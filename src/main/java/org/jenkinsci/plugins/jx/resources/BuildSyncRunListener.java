@@ -1,23 +1,22 @@
 package org.jenkinsci.plugins.jx.resources;
 
-import com.cloudbees.workflow.rest.external.RunExt;
-import com.cloudbees.workflow.rest.external.StageNodeExt;
-import com.cloudbees.workflow.rest.external.StatusExt;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import hudson.Extension;
-import hudson.model.Cause;
-import hudson.model.CauseAction;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.model.Queue;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.model.listeners.RunListener;
-import hudson.plugins.git.Branch;
-import hudson.plugins.git.GitSCM;
-import hudson.plugins.git.Revision;
-import hudson.plugins.git.UserRemoteConfig;
-import hudson.plugins.git.util.BuildData;
-import hudson.scm.SCM;
 import hudson.triggers.SafeTimerTask;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import io.fabric8.kubernetes.api.model.ObjectMeta;
 import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
 import io.fabric8.kubernetes.api.model.Service;
@@ -25,39 +24,45 @@ import io.fabric8.kubernetes.client.KubernetesClient;
 import io.fabric8.kubernetes.client.KubernetesClientException;
 import io.fabric8.kubernetes.client.dsl.NonNamespaceOperation;
 import io.fabric8.kubernetes.client.dsl.Resource;
+import io.fabric8.kubernetes.client.utils.Serialization;
 import io.jenkins.x.client.kube.ClientHelper;
 import io.jenkins.x.client.kube.DoneablePipelineActivities;
-import io.jenkins.x.client.kube.KubernetesNames;
+import io.jenkins.x.client.kube.Fingerprints;
+import io.jenkins.x.client.kube.KubeHelpers;
 import io.jenkins.x.client.kube.PipelineActivity;
 import io.jenkins.x.client.kube.PipelineActivityList;
 import io.jenkins.x.client.kube.PipelineActivitySpec;
-import io.jenkins.x.client.kube.PipelineActivityStep;
 import io.jenkins.x.client.kube.StageActivityStep;
 import io.jenkins.x.client.kube.Statuses;
+import io.jenkins.x.client.util.MergePatch;
 import io.jenkins.x.client.util.Strings;
 import io.jenkins.x.client.util.URLHelpers;
+import jenkins.model.Jenkins;
 import jenkins.model.JenkinsLocationConfiguration;
 import jenkins.util.Timer;
 import org.apache.commons.httpclient.HttpStatus;
-import org.jenkinsci.plugins.workflow.cps.CpsScmFlowDefinition;
-import org.jenkinsci.plugins.workflow.flow.FlowDefinition;
-import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionList;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 
 import javax.annotation.Nonnull;
+import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
-import static io.jenkins.x.client.util.MarkupUtils.toYaml;
+import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
 import static org.apache.commons.lang.StringUtils.isBlank;
@@ -71,12 +76,70 @@ import static org.jenkinsci.plugins.jx.resources.KubernetesUtils.getKubernetesCl
 public class BuildSyncRunListener extends RunListener<Run> {
     private static final String[] exposeUrlAnnotations = {"jenkins-x.io/exposeUrl", "fabric8.io/exposeUrl"};
     private static final Logger logger = Logger.getLogger(BuildSyncRunListener.class.getName());
-    private final long pollPeriodMs = 1000;
+    private static final int MAX_REPLAY_ATTEMPTS = 3;
+    private final long minPollIntervalMs = 1000;
+    private final long maxPollIntervalMs = 60000;
+    private final long recoveryWindowMs = 10000;
 
     private final Set<Run> runsToPoll = new CopyOnWriteArraySet<>();
+    private final Set<Run> finishedRuns = ConcurrentHashMap.newKeySet();
+    private final Map<Run, SyncContext> syncContexts = new ConcurrentHashMap<>();
+    private final PipelineActivityCache activityCache = new PipelineActivityCache(GlobalPluginConfiguration.DEFAULT_ACTIVITY_CACHE_SIZE);
+    private final PollBackoff outboxBackoff = new PollBackoff(1000, 60000);
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker(20, 10, 0.5, 10000, 30000);
+    private final SyncMetrics metrics = new SyncMetrics(this);
+    private final PipelineMetrics pipelineMetrics = new PipelineMetrics(PipelineMetrics.DEFAULT_MAX_SERIES);
+    private ActivitySyncQueue syncQueue;
+    private ActivityOutbox outbox;
+    private WriteRateLimiter rateLimiter;
+    private ScheduledThreadPoolExecutor outboxReplayer;
+    private boolean outboxReplayScheduled;
+    private StageBaselines stageBaselines;
+    private boolean baselinesSaveScheduled;
 
-    private final AtomicBoolean timerStarted = new AtomicBoolean(false);
-    private String jenkinsURL;
+    private volatile String jenkinsURL;
+
+    public static BuildSyncRunListener get() {
+        return RunListener.all().get(BuildSyncRunListener.class);
+    }
+
+    @Terminator
+    public static void shutdown() {
+        BuildSyncRunListener listener = get();
+        if (listener != null) {
+            listener.stopSync();
+            listener.getMetrics().unregister();
+        }
+    }
+
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void registerMetrics() {
+        BuildSyncRunListener listener = get();
+        if (listener != null) {
+            listener.getMetrics().register();
+        }
+    }
+
+    /**
+     * Replays any activity states which were journaled before Jenkins was restarted
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void startOutboxReplay() {
+        BuildSyncRunListener listener = get();
+        if (listener != null && listener.getOutbox().size() > 0) {
+            listener.scheduleOutboxReplay(0);
+        }
+    }
+
+    protected synchronized void stopSync() {
+        if (syncQueue != null) {
+            syncQueue.shutdown();
+        }
+        if (outboxReplayer != null) {
+            outboxReplayer.shutdownNow();
+        }
+        saveStageBaselines();
+    }
 
     /**
      * Joins all the given strings, ignoring nulls so that they form a URL with / between the paths without a // if the
@@ -124,294 +187,387 @@ public class BuildSyncRunListener extends RunListener<Run> {
     }
 
     @Override
-    public synchronized void onStarted(Run run, TaskListener listener) {
+    public void onStarted(Run run, TaskListener listener) {
         if (shouldPollRun(run)) {
             if (runsToPoll.add(run)) {
                 logger.info("starting polling build " + run.getUrl());
             }
-            checkTimerStarted();
+            long queuedSince = getPipelineMetrics().takeQueuedSince(run.getQueueId());
+            if (queuedSince > 0) {
+                getSyncContext(run).setQueueTimeMs(Math.max(0, run.getStartTimeInMillis() - queuedSince));
+            }
+            requestSync(run);
         } else {
             logger.fine("not polling polling build " + run.getUrl() + " as its not a WorkflowJob");
         }
         super.onStarted(run, listener);
     }
 
-    protected void checkTimerStarted() {
-        if (timerStarted.compareAndSet(false, true)) {
-            Runnable task = new SafeTimerTask() {
-                @Override
-                protected void doRun() throws Exception {
-                    pollLoop();
+    /**
+     * Invoked by the {@link StageGraphListener} when a stage of the run starts, ends or changes status
+     *
+     * @param run the run whose stages have changed
+     */
+    public void onStageGraphChanged(Run run) {
+        if (runsToPoll.contains(run)) {
+            SyncContext context = getSyncContext(run);
+            context.markStageChanged(System.currentTimeMillis());
+            context.getPollBackoff().reset();
+            requestSync(run);
+        }
+    }
+
+    /**
+     * Starts syncing a run which was still running when Jenkins restarted. All of the resumed runs are recovered at
+     * once so we spread their first syncs over the recovery window rather than sending them all together
+     *
+     * @param run the resumed run
+     */
+    public void onResumed(Run run) {
+        if (shouldPollRun(run) && run.isBuilding() && runsToPoll.add(run)) {
+            logger.info("resuming polling build " + run.getUrl());
+            getSyncContext(run).setResumed(true);
+            getSyncQueue().submit(run, ThreadLocalRandom.current().nextLong(recoveryWindowMs + 1));
+        }
+    }
+
+    /**
+     * Finds the pipelines which are still running after a restart; we only look at the running flow executions so
+     * that recovery does not depend on how many builds each job has kept
+     */
+    @Initializer(after = InitMilestone.COMPLETED)
+    public static void recoverRuns() {
+        BuildSyncRunListener listener = get();
+        if (listener == null) {
+            return;
+        }
+        for (FlowExecution execution : FlowExecutionList.get()) {
+            try {
+                Queue.Executable executable = execution.getOwner().getExecutable();
+                if (executable instanceof Run) {
+                    listener.onResumed((Run) executable);
                 }
-            };
-            Timer.get().scheduleAtFixedRate(task, pollPeriodMs, pollPeriodMs, TimeUnit.MILLISECONDS);
+            } catch (IOException e) {
+                logger.log(WARNING, "Could not find the run of " + execution + ": " + e, e);
+            }
         }
     }
 
     @Override
-    public synchronized void onCompleted(Run run, @Nonnull TaskListener listener) {
+    public void onCompleted(Run run, @Nonnull TaskListener listener) {
         if (shouldPollRun(run)) {
             runsToPoll.remove(run);
-            pollRun(run);
+            getSyncContext(run).setCompleted(true);
+            requestSync(run);
         }
         super.onCompleted(run, listener);
     }
 
     @Override
-    public synchronized void onDeleted(Run run) {
+    public void onDeleted(Run run) {
         if (shouldPollRun(run)) {
             runsToPoll.remove(run);
-            pollRun(run);
+            finishedRuns.add(run);
+            requestSync(run);
         }
         super.onDeleted(run);
     }
 
     @Override
-    public synchronized void onFinalized(Run run) {
+    public void onFinalized(Run run) {
         if (shouldPollRun(run)) {
             runsToPoll.remove(run);
-            pollRun(run);
+            finishedRuns.add(run);
+            requestSync(run);
         }
         super.onFinalized(run);
     }
 
-    protected synchronized void pollLoop() {
-        for (Run run : runsToPoll) {
-            pollRun(run);
+    /**
+     * Queues a sync of the activity of the run; syncs are coalesced until the maximum flush delay unless the run
+     * has completed in which case the activity is flushed straight away
+     *
+     * @param run the run to sync
+     */
+    protected void requestSync(Run run) {
+        ActivitySyncQueue queue = getSyncQueue();
+        queue.setMaxFlushDelayMs(GlobalPluginConfiguration.get().getMaxFlushDelay());
+        queue.submit(run, Statuses.isCompleted(getStatus(run)));
+    }
+
+    /**
+     * Lazily creates the sync queue so that its workers are sized from the global configuration
+     */
+    protected synchronized ActivitySyncQueue getSyncQueue() {
+        if (syncQueue == null) {
+            GlobalPluginConfiguration config = GlobalPluginConfiguration.get();
+            syncQueue = new ActivitySyncQueue(this::syncRun, config.getMaxFlushDelay(), config.getSyncWorkers());
+        }
+        return syncQueue;
+    }
+
+    /**
+     * Syncs the activity of the run once the queue flushes it and then schedules the next poll of the run.
+     * <p>
+     * Polling is a safety net in case we missed a flow graph event so while polls find no changes we back off
+     * exponentially up to the maximum poll interval; e.g. runs waiting for input or in a long running stage.
+     */
+    protected void syncRun(Run run) {
+        boolean changed = false;
+        long start = System.nanoTime();
+        try {
+            changed = pollRun(run);
+        } finally {
+            metrics.onSync(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            SyncContext context = syncContexts.get(run);
+            long deferred = context != null ? context.takeDeferredDelay() : 0;
+            if (deferred > 0 && (finishedRuns.contains(run) || runsToPoll.contains(run))) {
+                // the write is waiting for a token, even if the run has finished, so try again once we expect one
+                getSyncQueue().submit(run, deferred);
+            } else if (finishedRuns.remove(run)) {
+                forgetRun(run);
+            } else if (runsToPoll.contains(run)) {
+                getSyncQueue().submit(run, getSyncContext(run).getPollBackoff().nextDelay(changed));
+            }
+        }
+    }
+
+    /**
+     * Drops the state we keep while syncing the run, including its cached activity, once we have stopped syncing it
+     */
+    private void forgetRun(Run run) {
+        SyncContext context = syncContexts.remove(run);
+        if (context != null && context.getName() != null) {
+            activityCache.invalidate(context.getName());
         }
     }
 
-    protected synchronized void pollRun(Run run) {
+    /**
+     * Sizes the activity cache so that it can hold the activity of every run we are syncing as otherwise the cache
+     * would thrash once more builds are running than it can hold and every sync would load its activity again
+     */
+    private void updateActivityCacheSize() {
+        int size = Math.max(GlobalPluginConfiguration.get().getActivityCacheSize(), syncContexts.size());
+        if (size != activityCache.getMaxSize()) {
+            activityCache.setMaxSize(size);
+        }
+    }
+
+    /**
+     * Returns the state we keep while syncing the run, creating it the first time the run is synced
+     */
+    protected SyncContext getSyncContext(Run run) {
+        return syncContexts.computeIfAbsent(run, r -> new SyncContext(new PollBackoff(minPollIntervalMs, maxPollIntervalMs)));
+    }
+
+    /**
+     * Syncs the activity of the run
+     *
+     * @param run the run to sync
+     * @return true if the activity was changed
+     */
+    protected boolean pollRun(Run run) {
         if (!(run instanceof WorkflowRun)) {
             throw new IllegalStateException("Cannot poll a non-workflow run");
         }
 
-        RunExt wfRunExt = RunExt.create((WorkflowRun) run);
+        SyncContext context = getSyncContext(run);
+        List<StageInfo> stages = context.getStageTracker().update((WorkflowRun) run);
 
         try {
-            upsertBuild(run, wfRunExt);
+            return upsertBuild(run, context, stages);
         } catch (KubernetesClientException e) {
             if (e.getCode() == HttpStatus.SC_UNPROCESSABLE_ENTITY) {
                 runsToPoll.remove(run);
+                forgetRun(run);
                 logger.log(WARNING, "Cannot update status: {0}", e.getMessage());
-                return;
+                return false;
             }
             throw e;
         }
     }
 
-    @SuppressFBWarnings(value = "SF_SWITCH_NO_DEFAULT", justification = "Just ignoring other Statuses")
-    private void upsertBuild(Run run, RunExt wfRunExt) {
-        if (run == null) {
-            return;
-        }
-
-        long started = getStartTime(run);
-        String startTime = null;
-        String completionTime = null;
-        if (started > 0) {
-            startTime = formatTimestamp(started);
+    private boolean upsertBuild(Run run, SyncContext context, List<StageInfo> stages) {
+        return upsertBuild(run, context, stages, true);
+    }
 
-            long duration = getDuration(run);
-            if (duration > 0) {
-                completionTime = formatTimestamp(started + duration);
-            }
+    private boolean upsertBuild(Run run, SyncContext context, List<StageInfo> stages, boolean retryOnConflict) {
+        if (run == null) {
+            return false;
         }
 
         KubernetesClient kubeClient = getKubernetesClient();
         String namespace = GlobalPluginConfiguration.get().getNamespace();
         NonNamespaceOperation<PipelineActivity, PipelineActivityList, DoneablePipelineActivities, Resource<PipelineActivity, DoneablePipelineActivities>> client = ClientHelper.pipelineActivityClient(kubeClient, namespace);
 
-        String parentFullName = "";
-
-        // when using this plugin inside the jenkinsfile runner these values may not be valid so lets look for the magic env vars first
-        String repoOwner = EnvironmentVariableExpander.getenv("REPO_OWNER");
-        String repoName = EnvironmentVariableExpander.getenv("REPO_NAME");
-        String branchName = EnvironmentVariableExpander.getenv("BRANCH_NAME");
-
-
-        // try discover the sha and branch name
-        String sha = "";
-        String lastCommitMessage = "";
-        BuildData buildData = run.getAction(BuildData.class);
-        if (buildData != null) {
-            Revision rev = buildData.getLastBuiltRevision();
-            if (rev != null) {
-                if (Strings.empty(sha)) {
-                    sha = rev.getSha1String();
-                }
-                Collection<Branch> branches = rev.getBranches();
-                if (branches.size() == 1) {
-                    for (Branch branch : branches) {
-                        String branchExpression = branch.getName();
-                        if (Strings.notEmpty(branchExpression)) {
-                            String[] paths = branchExpression.split("/");
-                            if (paths.length > 0) {
-                                branchName = paths[paths.length - 1];
-                            }
-                        }
-                    }
-                }
-            }
+        context.resolve(run, jenkinsURL(kubeClient, namespace));
+        String name = context.getName();
+        updateActivityCacheSize();
+        if (context.takeCompleted()) {
+            recordPipelineMetrics(run, context, stages);
         }
 
-        // is there any other way to find the git owner/repo/branch?
-        if (Strings.empty(branchName)) {
-            branchName = "master";
+        boolean create = false;
+        boolean offline = false;
+        boolean resumed = context.isResumed();
+        PipelineActivity activity = activityCache.get(name);
+        if (activity == null && context.isResumed()) {
+            context.setResumed(false);
+            activity = restoreActivity(run, context, stages);
+            if (activity != null) {
+                activityCache.put(name, activity);
+            }
         }
-
-        String gitUrl = findGitURL(run);
-        if (Strings.empty(repoOwner) || Strings.empty(repoName)) {
-            if (Strings.notEmpty(gitUrl)) {
-                GitURLInfo info = GitURLParser.parse(gitUrl);
-                if (info != null) {
-                    repoOwner = info.getOwner();
-                    repoName = info.getRepository();
-
+        if (activity == null) {
+            if (!tryAcquireToken(context, true)) {
+                return false;
+            }
+            try {
+                activity = callApiServer(SyncMetrics.Call.GET, () -> client.withName(name).get());
+            } catch (KubernetesClientException e) {
+                if (!KubeHelpers.isRetriable(e)) {
+                    throw e;
                 }
+                // we can't see the activity on the server so lets journal the whole activity
+                logger.log(FINE, "Could not load pipeline activity " + name + ": " + e);
+                offline = true;
             }
-        }
-        if (Strings.empty(repoOwner) || Strings.empty(repoName)) {
-            // if we still can't find the owner/repo lets use the folder structure
-            String fullName = run.getParent().getFullName();
-            String[] paths = fullName.split("/");
-            if (paths.length == 2) {
-                repoOwner = paths[0];
-                repoName = paths[1];
+            if (activity != null) {
+                activityCache.put(name, activity);
             }
         }
-
-        if (Strings.notEmpty(repoOwner) && Strings.notEmpty(repoName) && Strings.notEmpty(branchName)) {
-            parentFullName = repoOwner + "/" + repoName + "/" + branchName;
-        }
-
-        String buildNumberText = EnvironmentVariableExpander.getenv("JX_BUILD_NUMBER");
-        if (Strings.empty(buildNumberText)) {
-            buildNumberText = EnvironmentVariableExpander.getenv("BUILD_NUMBER");
-        }
-        if (Strings.empty(buildNumberText)) {
-            buildNumberText = EnvironmentVariableExpander.getenv("BUILD_ID");
-        }
-
-        if (Strings.empty(parentFullName)) {
-            parentFullName = run.getParent().getFullName();
-        }
-        if (Strings.empty(buildNumberText)) {
-            buildNumberText = "" + run.getNumber();
-        }
-        String runName = parentFullName + "-" + buildNumberText;
-        String name = KubernetesNames.convertToKubernetesName(runName, false);
-
-        boolean create = false;
-        PipelineActivity activity = client.withName(name).get();
         if (activity == null) {
             activity = new PipelineActivity();
             activity.setMetadata(new ObjectMetaBuilder().withName(name).build());
             create = true;
         }
+        if (activity.getSpec() == null) {
+            activity.setSpec(new PipelineActivitySpec());
+        }
+        // compare with the activity as it is on the server as the cached activity may have changes we deferred
+        long oldFingerprint = create ? 0 : activityCache.getFingerprint(name);
+        applyRun(activity, run, context, stages);
+        updateStageBaselines(activity.getSpec(), context, stages, resumed);
+
+        if (create || oldFingerprint != Fingerprints.of(activity.getSpec())) {
+            if (offline || getOutbox().contains(name)) {
+                // keep the journaled states in order by letting the replayer write this one after the earlier ones
+                journalActivity(name, activity);
+                return true;
+            }
+            if (!tryAcquireToken(context, create || Statuses.isCompleted(activity.getSpec().getStatus()))) {
+                return false;
+            }
+            PipelineActivity answer;
+            try {
+                if (create) {
+                    PipelineActivity newActivity = activity;
+                    answer = callApiServer(SyncMetrics.Call.CREATE, () -> client.create(newActivity));
+                } else {
+                    answer = patchActivity(kubeClient, namespace, name, activity);
+                }
+            } catch (KubernetesClientException e) {
+                if (KubeHelpers.isRetriable(e)) {
+                    logger.log(FINE, "Could not write pipeline activity " + name + ", journaling it until the API server is available: " + e);
+                    journalActivity(name, activity);
+                    return true;
+                }
+                // the cached activity now has changes which are not on the server
+                activityCache.invalidate(name);
+                if (retryOnConflict && e.getCode() == HttpStatus.SC_CONFLICT) {
+                    logger.log(INFO, "Pipeline activity " + name + " was modified on the server, retrying the update");
+                    return upsertBuild(run, context, stages, false);
+                }
+                throw e;
+            }
+            answer = answer != null ? answer : activity;
+            activityCache.put(name, answer);
+            recordSync(run, name, answer);
+            long stageChangedAt = context.takeStageChangedAt();
+            if (stageChangedAt > 0) {
+                metrics.onStageWritten(Math.max(0, System.currentTimeMillis() - stageChangedAt));
+            }
+            // intermediate stage updates are too frequent to log at INFO but creates and completed builds are not
+            boolean completed = Statuses.isCompleted(activity.getSpec().getStatus());
+            logger.log(create || completed ? INFO : FINE, (create ? "Created" : "Updated") + "  pipeline activity " + name);
+            return true;
+        }
+        metrics.onSkippedWrite();
+        return false;
+    }
+
+    /**
+     * Applies the current state of the run to its activity
+     */
+    protected void applyRun(PipelineActivity activity, Run run, SyncContext context, List<StageInfo> stages) {
+        applyState(activity, context, getStatus(run), getStartTime(run), getDuration(run), stages);
+    }
+
+    /**
+     * Applies the given state of a run to its activity; this is the part of a sync which does not depend on Jenkins
+     * so that it can be benchmarked on its own
+     */
+    @SuppressFBWarnings(value = "SF_SWITCH_NO_DEFAULT", justification = "Just ignoring other Statuses")
+    protected void applyState(PipelineActivity activity, SyncContext context, String status, long started, long duration, List<StageInfo> stages) {
         Map<String, String> labels = activity.getMetadata().getLabels();
         if (labels == null) {
             labels = new HashMap<>();
         }
-        if (Strings.notEmpty(repoOwner)) {
-            labels.put("owner", KubernetesNames.convertToKubernetesName(repoOwner, false));
-        }
-        if (Strings.notEmpty(repoName)) {
-            labels.put("repository", KubernetesNames.convertToKubernetesName(repoName, false));
-        }
-        if (Strings.notEmpty(branchName)) {
-            labels.put("branch", KubernetesNames.convertToKubernetesName(branchName, false));
-        }
-        if (Strings.notEmpty(buildNumberText)) {
-            labels.put("build", buildNumberText);
-        }
+        labels.putAll(context.getLabels());
         activity.getMetadata().setLabels(labels);
         PipelineActivitySpec spec = activity.getSpec();
         if (spec == null) {
             spec = new PipelineActivitySpec();
             activity.setSpec(spec);
         }
-        String oldYaml = create ? "" : toYamlOrRandom(spec);
-        String status = getStatus(run);
         spec.setStatus(status);
-        if (isBlank(spec.getStartedTimestamp())) {
-            spec.setStartedTimestamp(startTime);
-        }
-        if (isBlank(spec.getCompletedTimestamp()) && Statuses.isCompleted(status)) {
-            spec.setCompletedTimestamp(completionTime);
+        if (started > 0) {
+            if (isBlank(spec.getStartedTimestamp())) {
+                spec.setStartedTimestamp(formatTimestamp(started));
+            }
+            if (duration > 0 && isBlank(spec.getCompletedTimestamp()) && Statuses.isCompleted(status)) {
+                spec.setCompletedTimestamp(formatTimestamp(started + duration));
+            }
         }
         if (isBlank(spec.getPipeline())) {
-            spec.setPipeline(parentFullName);
+            spec.setPipeline(context.getParentFullName());
         }
         if (isBlank(spec.getBuild())) {
-            spec.setBuild(buildNumberText);
+            spec.setBuild(context.getBuildNumberText());
         }
         if (isBlank(spec.getGitOwner())) {
-            spec.setGitOwner(repoOwner);
+            spec.setGitOwner(context.getRepoOwner());
         }
         if (isBlank(spec.getGitRepository())) {
-            spec.setGitRepository(repoName);
+            spec.setGitRepository(context.getRepoName());
         }
         if (isBlank(spec.getGitBranch())) {
-            spec.setGitBranch(branchName);
-        }
-
-        // lets find the user who triggered it
-        String author = "";
-        CauseAction causeAction = run.getAction(CauseAction.class);
-        if (causeAction != null) {
-            List<Cause> causes = causeAction.getCauses();
-            for (Cause cause : causes) {
-                if (cause instanceof Cause.UserIdCause) {
-                    Cause.UserIdCause userIdCause = (Cause.UserIdCause) cause;
-                    if (Strings.empty(author)) {
-                        author = userIdCause.getUserId();
-                    }
-                } else if (cause instanceof Cause.RemoteCause) {
-                    Cause.RemoteCause remoteCause = (Cause.RemoteCause) cause;
-                    if (Strings.empty(lastCommitMessage)) {
-                        lastCommitMessage = remoteCause.getShortDescription();
-                    }
-                } else if (cause instanceof Cause.UpstreamCause) {
-                    Cause.UpstreamCause upstreamCause = (Cause.UpstreamCause) cause;
-                    if (Strings.empty(lastCommitMessage)) {
-                        lastCommitMessage = upstreamCause.getShortDescription();
-                    }
-                }
-            }
+            spec.setGitBranch(context.getBranchName());
         }
         if (isBlank(spec.getAuthor())) {
-            spec.setAuthor(author);
+            spec.setAuthor(context.getAuthor());
         }
         if (isBlank(spec.getLastCommitMessage())) {
-            spec.setLastCommitMessage(lastCommitMessage);
+            spec.setLastCommitMessage(context.getLastCommitMessage());
         }
         if (Strings.empty(spec.getLastCommitSHA())) {
-            spec.setLastCommitSHA(sha);
+            spec.setLastCommitSHA(context.getSha());
         }
-
-        String jenkinsURL = jenkinsURL(kubeClient, namespace);
-        if (!isBlank(jenkinsURL)) {
-            if (isBlank(spec.getBuildUrl())) {
-                spec.setBuildUrl(createBuildUrl(jenkinsURL, parentFullName, buildNumberText));
-            }
-            if (isBlank(spec.getBuildLogsUrl())) {
-                spec.setBuildLogsUrl(createBuildLogsUrl(jenkinsURL, parentFullName, buildNumberText));
-            }
+        if (isBlank(spec.getBuildUrl()) && !isBlank(context.getBuildUrl())) {
+            spec.setBuildUrl(context.getBuildUrl());
         }
-
-        if (isBlank(spec.getGitUrl())) {
-            if (!isBlank(gitUrl)) {
-                spec.setGitUrl(gitUrl);
-            }
+        if (isBlank(spec.getBuildLogsUrl()) && !isBlank(context.getBuildLogsUrl())) {
+            spec.setBuildLogsUrl(context.getBuildLogsUrl());
+        }
+        if (isBlank(spec.getGitUrl()) && !isBlank(context.getGitUrl())) {
+            spec.setGitUrl(context.getGitUrl());
         }
 
-        List<StageNodeExt> stages = wfRunExt.getStages();
         if (stages != null) {
             int i = 0;
-            for (StageNodeExt stage : stages) {
-                String stageStatus = getStageStatus(stage.getStatus());
-                StageActivityStep stageStep = getOrCreateStage(spec, i++);
+            for (StageInfo stage : stages) {
+                String stageStatus = stage.getStatus();
+                StageActivityStep stageStep = context.getStageIndex().getOrCreateStage(spec, stage, i++);
                 if (stageStep != null) {
                     stageStep.setStatus(stageStatus);
                     if (status.equals(Statuses.SUCCEEDED)) {
@@ -421,7 +577,7 @@ public class BuildSyncRunListener extends RunListener<Run> {
                                 spec.setStatus(Statuses.RUNNING);
                         }
                     }
-                    String stageName = getStageName(stage);
+                    String stageName = getStageName(stage.getName());
                     stageStep.setName(stageName);
                     if (isBlank(stageStep.getStartedTimestamp())) {
                         stageStep.setStartedTimestamp(formatTimestamp(stage.getStartTimeMillis()));
@@ -432,68 +588,533 @@ public class BuildSyncRunListener extends RunListener<Run> {
                 }
             }
         }
+    }
 
-        String newYaml = create ? "" : toYamlOrRandom(spec);
-        if (create || !oldYaml.equals(newYaml)) {
-            client.createOrReplace(activity);
-            logger.log(INFO, (create ? "Created" : "Updated") + "  pipeline activity " + name);
+    /**
+     * Records how long the completed run and its stages took
+     */
+    private void recordPipelineMetrics(Run run, SyncContext context, List<StageInfo> stages) {
+        PipelineMetrics answer = getPipelineMetrics();
+        String owner = context.getRepoOwner();
+        String repository = context.getRepoName();
+        String branch = context.getBranchName();
+        answer.recordBuild(owner, repository, branch, getStatus(run), getDuration(run), context.getQueueTimeMs());
+        if (stages != null) {
+            for (StageInfo stage : stages) {
+                if (Statuses.isCompleted(stage.getStatus())) {
+                    long duration = stage.getStartTimeMillis() > 0 ? stage.getDurationMillis() : -1;
+                    answer.recordStage(owner, repository, branch, getStageName(stage.getName()), stage.getStatus(), duration);
+                }
+            }
         }
     }
 
     /**
-     * Returns true if the plugin is running inside Servlerless Jenkins where we don't have a static master
-     * serving up a UI
+     * Adds the durations of the stages which have completed since the last sync to their baselines and flags the
+     * stages which took longer than the 95th percentile of their previous durations.
+     * <p>
+     * Stages which had already completed when a run is resumed were recorded before the restart so they are skipped.
+     */
+    private void updateStageBaselines(PipelineActivitySpec spec, SyncContext context, List<StageInfo> stages, boolean resumed) {
+        if (stages == null) {
+            return;
+        }
+        boolean recorded = false;
+        for (StageInfo stage : stages) {
+            if (!Statuses.isCompleted(stage.getStatus()) || !context.markStageBaselined(stage.getId())) {
+                continue;
+            }
+            if (resumed || stage.getStartTimeMillis() <= 0 || !Statuses.SUCCEEDED.equals(stage.getStatus())) {
+                // failed and aborted stages end early so would drag the baseline down
+                continue;
+            }
+            long p95 = getStageBaselines().record(context.getParentFullName(), getStageName(stage.getName()), stage.getDurationMillis());
+            recorded = true;
+            if (p95 >= 0) {
+                context.setSlowStage(stage.getId(), p95);
+            }
+        }
+        int i = 0;
+        for (StageInfo stage : stages) {
+            int ordinal = i++;
+            Long p95 = context.getSlowStageP95(stage.getId());
+            if (p95 != null) {
+                StageActivityStep step = context.getStageIndex().getOrCreateStage(spec, stage, ordinal);
+                if (step != null) {
+                    step.setAdditionalProperty("slow", true);
+                    step.setAdditionalProperty("p95DurationMillis", p95);
+                }
+            }
+        }
+        if (recorded) {
+            scheduleStageBaselinesSave();
+        }
+    }
+
+    /**
+     * Lazily loads the baselines of stage durations
+     */
+    protected synchronized StageBaselines getStageBaselines() {
+        if (stageBaselines == null) {
+            stageBaselines = new StageBaselines(new File(Jenkins.get().getRootDir(), "jx-resources/stage-baselines.bin").toPath(),
+                    StageBaselines.DEFAULT_MAX_SKETCHES);
+            try {
+                stageBaselines.load();
+            } catch (IOException e) {
+                logger.log(WARNING, "Could not load the stage baselines: " + e, e);
+            }
+        }
+        return stageBaselines;
+    }
+
+    /**
+     * Saves the baselines a while after they change so that we write the file at most once a minute
+     */
+    private synchronized void scheduleStageBaselinesSave() {
+        if (baselinesSaveScheduled) {
+            return;
+        }
+        baselinesSaveScheduled = true;
+        Timer.get().schedule(new SafeTimerTask() {
+            @Override
+            protected void doRun() {
+                synchronized (BuildSyncRunListener.this) {
+                    baselinesSaveScheduled = false;
+                }
+                saveStageBaselines();
+            }
+        }, 1, TimeUnit.MINUTES);
+    }
+
+    private void saveStageBaselines() {
+        StageBaselines baselines;
+        synchronized (this) {
+            baselines = stageBaselines;
+        }
+        if (baselines != null) {
+            try {
+                baselines.save();
+            } catch (IOException e) {
+                logger.log(WARNING, "Could not save the stage baselines: " + e, e);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the activity of a run which we were syncing before Jenkins restarted from the state of the run rather
+     * than loading it from the API server; we can only trust the result if it is exactly what we last wrote
+     */
+    private PipelineActivity restoreActivity(Run run, SyncContext context, List<StageInfo> stages) {
+        ActivitySyncAction action;
+        try {
+            action = ActivitySyncAction.load(run);
+        } catch (IOException e) {
+            logger.log(WARNING, "Could not load the last sync of " + run + ": " + e, e);
+            return null;
+        }
+        String name = context.getName();
+        if (action == null || !name.equals(action.getActivityName()) || isBlank(action.getResourceVersion())) {
+            return null;
+        }
+        PipelineActivity activity = new PipelineActivity();
+        activity.setMetadata(new ObjectMetaBuilder().withName(name).withResourceVersion(action.getResourceVersion()).build());
+        activity.setSpec(new PipelineActivitySpec());
+        applyRun(activity, run, context, stages);
+        if (Fingerprints.of(activity.getSpec()) != action.getFingerprint()) {
+            return null;
+        }
+        logger.log(FINE, "Restored pipeline activity " + name + " without loading it");
+        return activity;
+    }
+
+    /**
+     * Remembers the activity we have just written so that we can restore it after a restart; this is saved on every
+     * write as a stale version or fingerprint would make the restore fail
+     */
+    private void recordSync(Run run, String name, PipelineActivity activity) {
+        ActivitySyncAction action = new ActivitySyncAction(name);
+        action.setResourceVersion(activity.getMetadata().getResourceVersion());
+        action.setFingerprint(Fingerprints.of(activity.getSpec()));
+        try {
+            action.save(run);
+        } catch (IOException e) {
+            logger.log(WARNING, "Could not save the last sync of " + run + ": " + e, e);
+        }
+    }
+
+    /**
+     * Makes a call to the API server through the circuit breaker. While the breaker is open the call is rejected
+     * with a 503 so that callers journal the activity just as if the API server were unavailable
+     */
+    protected <T> T callApiServer(SyncMetrics.Call type, Supplier<T> call) {
+        if (!circuitBreaker.allowRequest()) {
+            metrics.onRejectedCall();
+            throw new KubernetesClientException("Not calling the API server while it is unhealthy", HttpStatus.SC_SERVICE_UNAVAILABLE, null);
+        }
+        metrics.onCall(type);
+        long start = System.nanoTime();
+        try {
+            T answer = call.get();
+            circuitBreaker.onSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return answer;
+        } catch (KubernetesClientException e) {
+            long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            metrics.onError(e.getCode());
+            if (KubeHelpers.isRetriable(e)) {
+                circuitBreaker.onFailure(latencyMs);
+            } else {
+                circuitBreaker.onSuccess(latencyMs);
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.onError(0);
+            circuitBreaker.onFailure(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            throw e;
+        }
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public SyncMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the build and stage metrics, updated with the current configuration
+     */
+    public PipelineMetrics getPipelineMetrics() {
+        int maxSeries = GlobalPluginConfiguration.get().getMaxMetricSeries();
+        if (maxSeries != pipelineMetrics.getMaxSeries()) {
+            pipelineMetrics.setMaxSeries(maxSeries);
+        }
+        return pipelineMetrics;
+    }
+
+    /**
+     * Returns the number of runs waiting in the sync queue
+     */
+    public synchronized int getQueueDepth() {
+        return syncQueue != null ? syncQueue.size() : 0;
+    }
+
+    /**
+     * Returns the number of running builds we are syncing
+     */
+    public int getActiveRunCount() {
+        return runsToPoll.size();
+    }
+
+    /**
+     * Returns the number of activity states waiting in the journal for the API server
+     */
+    public int getJournaledActivityCount() {
+        return getOutbox().size();
+    }
+
+    /**
+     * Returns the limiter of calls to the API server, updated with the current configuration
+     */
+    protected synchronized WriteRateLimiter getRateLimiter() {
+        GlobalPluginConfiguration config = GlobalPluginConfiguration.get();
+        if (rateLimiter == null) {
+            rateLimiter = new WriteRateLimiter(config.getWriteRateLimit(), config.getWriteBurst());
+        } else {
+            rateLimiter.setRate(config.getWriteRateLimit(), config.getWriteBurst());
+        }
+        return rateLimiter;
+    }
+
+    /**
+     * Takes a token to call the API server for the run or else defers its sync until a token is expected, so that
+     * the sync worker is never blocked waiting for one
      *
-     * @return true if inside a UI-less servleress jenkins
+     * @return whether a token was taken
      */
-    private boolean isServerlessJenkins() {
-        return Strings.notEmpty(EnvironmentVariableExpander.getenv("PROW_JOB_ID"));
+    private boolean tryAcquireToken(SyncContext context, boolean priority) {
+        long wait = getRateLimiter().tryAcquire(priority);
+        if (wait > 0) {
+            // try again once we expect a token; any changes until then are coalesced into one write
+            context.setDeferredDelay(wait);
+            metrics.onDeferredWrite();
+            return false;
+        }
+        return true;
     }
 
-    private String findGitURL(Run run) {
-        if (run instanceof WorkflowRun) {
-            WorkflowRun workflowRun = (WorkflowRun) run;
-            WorkflowJob job = workflowRun.getParent();
-            if (job != null) {
-                FlowDefinition definition = job.getDefinition();
-                if (definition instanceof CpsScmFlowDefinition) {
-                    CpsScmFlowDefinition cpsScmFlowDefinition = (CpsScmFlowDefinition) definition;
-                    SCM scm = cpsScmFlowDefinition.getScm();
-                    String url = getGitUrl(scm);
-                    if (!isBlank(url)) {
-                        return url;
-                    }
+    /**
+     * Lazily loads the journal of activity states which are waiting to be written to the API server
+     */
+    protected synchronized ActivityOutbox getOutbox() {
+        if (outbox == null) {
+            outbox = new ActivityOutbox(new File(Jenkins.get().getRootDir(), "jx-resources/activity-outbox.jsonl"));
+            try {
+                outbox.load();
+            } catch (IOException e) {
+                logger.log(WARNING, "Could not load the pipeline activity journal: " + e, e);
+            }
+        }
+        return outbox;
+    }
+
+    /**
+     * Journals the activity so that the replayer writes it once the API server is available again; the activity is
+     * cached so that later syncs journal the latest state of the run rather than talking to the API server
+     */
+    private void journalActivity(String name, PipelineActivity activity) {
+        try {
+            // an activity we could not load from the API server has no resourceVersion
+            getOutbox().append(name, activity, !isBlank(activity.getMetadata().getResourceVersion()));
+        } catch (IOException e) {
+            activityCache.invalidate(name);
+            throw new KubernetesClientException("Could not journal pipeline activity " + name + ": " + e, e);
+        }
+        metrics.onJournaledWrite();
+        activityCache.put(name, activity);
+        scheduleOutboxReplay(outboxBackoff.getIntervalMs());
+    }
+
+    protected synchronized void scheduleOutboxReplay(long delay) {
+        if (outboxReplayScheduled) {
+            return;
+        }
+        if (outboxReplayer == null) {
+            outboxReplayer = new ScheduledThreadPoolExecutor(1, new NamingThreadFactory(new DaemonThreadFactory(), "jx-resources-outbox"));
+        }
+        if (!outboxReplayer.isShutdown()) {
+            outboxReplayScheduled = true;
+            outboxReplayer.schedule(new SafeTimerTask() {
+                @Override
+                protected void doRun() {
+                    replayOutbox();
                 }
-                Collection<? extends SCM> scms = job.getSCMs();
-                if (scms != null) {
-                    for (SCM scm : scms) {
-                        String url = getGitUrl(scm);
-                        if (!isBlank(url)) {
-                            return url;
-                        }
-                    }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the journaled activity states to the API server in the order they were journaled, backing off while
+     * the API server is unavailable
+     */
+    protected void replayOutbox() {
+        synchronized (this) {
+            outboxReplayScheduled = false;
+        }
+        ActivityOutbox journal = getOutbox();
+        KubernetesClient kubeClient = getKubernetesClient();
+        String namespace = GlobalPluginConfiguration.get().getNamespace();
+        for (ActivityOutbox.Entry entry : journal.getPending()) {
+            String name = entry.getName();
+            long wait = getRateLimiter().tryAcquire(true);
+            if (wait > 0) {
+                scheduleOutboxReplay(wait);
+                return;
+            }
+            try {
+                PipelineActivity answer = replayActivity(kubeClient, namespace, entry);
+                if (journal.acknowledge(name, entry.getSeq())) {
+                    activityCache.put(name, answer);
+                }
+            } catch (KubernetesClientException e) {
+                if (KubeHelpers.isRetriable(e)) {
+                    logger.log(FINE, "API server still unavailable, " + journal.size() + " pipeline activities are journaled: " + e);
+                    scheduleOutboxReplay(Math.max(outboxBackoff.nextDelay(false), circuitBreaker.getRemainingOpenMs()));
+                    return;
                 }
+                logger.log(WARNING, "Dropping journaled pipeline activity " + name + ": " + e);
+                acknowledgeQuietly(journal, entry);
+            } catch (IOException e) {
+                logger.log(WARNING, "Could not update the pipeline activity journal: " + e, e);
+                scheduleOutboxReplay(outboxBackoff.nextDelay(false));
+                return;
             }
         }
-        return null;
+        outboxBackoff.reset();
+        if (journal.size() > 0) {
+            scheduleOutboxReplay(0);
+        } else {
+            logger.log(INFO, "Replayed all journaled pipeline activities");
+        }
     }
 
-    private String getGitUrl(SCM scm) {
-        if (scm instanceof GitSCM) {
-            GitSCM gitSCM = (GitSCM) scm;
-            List<UserRemoteConfig> userRemoteConfigs = gitSCM.getUserRemoteConfigs();
-            if (userRemoteConfigs != null) {
-                for (UserRemoteConfig userRemoteConfig : userRemoteConfigs) {
-                    if (userRemoteConfig != null) {
-                        String url = userRemoteConfig.getUrl();
-                        if (!isBlank(url)) {
-                            return url;
-                        }
-                    }
+    /**
+     * Merges the journaled labels and spec into the activity on the server or creates it if it no longer exists.
+     * <p>
+     * Only the fields which differ from the server copy are sent, guarded by its <code>resourceVersion</code>; if the
+     * activity is modified on the server in the meantime we read it again and merge into the new copy.
+     */
+    PipelineActivity replayActivity(KubernetesClient kubeClient, String namespace, ActivityOutbox.Entry entry) {
+        String name = entry.getName();
+        for (int attempt = 1; ; attempt++) {
+            PipelineActivity current = callApiServer(SyncMetrics.Call.GET, () -> ClientHelper.pipelineActivityClient(kubeClient, namespace).withName(name).get());
+            if (current == null) {
+                break;
+            }
+            ObjectNode patch = createReplayPatch(Serialization.jsonMapper().valueToTree(current), entry);
+            if (patch == null) {
+                return current;
+            }
+            try {
+                return callApiServer(SyncMetrics.Call.PATCH, () -> ClientHelper.patchPipelineActivity(kubeClient, namespace, name, patch));
+            } catch (KubernetesClientException e) {
+                if (e.getCode() == HttpStatus.SC_NOT_FOUND) {
+                    break;
+                }
+                if (e.getCode() != HttpStatus.SC_CONFLICT || attempt >= MAX_REPLAY_ATTEMPTS) {
+                    throw e;
+                }
+                logger.log(FINE, "Pipeline activity " + name + " was modified on the server, replaying it again");
+            }
+        }
+        PipelineActivity activity = Serialization.jsonMapper().convertValue(entry.getJson(), PipelineActivity.class);
+        activity.getMetadata().setResourceVersion(null);
+        return callApiServer(SyncMetrics.Call.CREATE, () -> ClientHelper.pipelineActivityClient(kubeClient, namespace).create(activity));
+    }
+
+    /**
+     * Returns the merge patch which brings the server copy up to date with the journaled state, guarded by the
+     * <code>resourceVersion</code> of the server copy, or null if the server already has the journaled state.
+     * <p>
+     * If the journaled state was based on this very server copy it is diffed as a whole. Otherwise it is merged into
+     * the server copy: labels and spec fields are only ever added or changed and the journaled steps replace the
+     * steps with the same kind and name, so steps written by others, such as promotions, are kept.
+     */
+    static ObjectNode createReplayPatch(JsonNode server, ActivityOutbox.Entry entry) {
+        JsonNode journaled = entry.getJson();
+        String resourceVersion = server.path("metadata").path("resourceVersion").asText();
+        boolean exact = entry.isFromServerCopy() && !isBlank(resourceVersion)
+                && resourceVersion.equals(journaled.path("metadata").path("resourceVersion").asText());
+        ObjectNode patch = JsonNodeFactory.instance.objectNode();
+        JsonNode labels = journaled.path("metadata").get("labels");
+        if (labels != null) {
+            ObjectNode labelsPatch = MergePatch.diff(server.path("metadata").path("labels"), labels);
+            if (!exact) {
+                withoutNulls(labelsPatch);
+            }
+            if (labelsPatch.size() > 0) {
+                patch.putObject("metadata").set("labels", labelsPatch);
+            }
+        }
+        JsonNode spec = journaled.get("spec");
+        if (spec != null) {
+            JsonNode serverSpec = server.path("spec");
+            ObjectNode specPatch = exact ? MergePatch.diff(serverSpec, spec) : withoutNulls(MergePatch.diff(serverSpec, mergeSpec(serverSpec, spec)));
+            if (specPatch.size() > 0) {
+                patch.set("spec", specPatch);
+            }
+        }
+        if (patch.size() == 0) {
+            return null;
+        }
+        if (!isBlank(resourceVersion)) {
+            ObjectNode metadata = patch.has("metadata") ? (ObjectNode) patch.get("metadata") : patch.putObject("metadata");
+            metadata.put("resourceVersion", resourceVersion);
+        }
+        return patch;
+    }
+
+    /**
+     * Returns the server spec with the journaled fields and steps merged into it
+     */
+    private static JsonNode mergeSpec(JsonNode serverSpec, JsonNode spec) {
+        ObjectNode answer = serverSpec.isObject() ? ((ObjectNode) serverSpec).deepCopy() : JsonNodeFactory.instance.objectNode();
+        Iterator<Map.Entry<String, JsonNode>> iter = spec.fields();
+        while (iter.hasNext()) {
+            Map.Entry<String, JsonNode> field = iter.next();
+            if ("steps".equals(field.getKey())) {
+                answer.set("steps", mergeSteps(serverSpec.path("steps"), field.getValue()));
+            } else {
+                answer.set(field.getKey(), field.getValue());
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Replaces the server steps with the journaled steps of the same kind and name; journaled steps which are not on
+     * the server are inserted after the previous journaled step
+     */
+    private static ArrayNode mergeSteps(JsonNode serverSteps, JsonNode steps) {
+        List<JsonNode> answer = new ArrayList<>();
+        serverSteps.forEach(answer::add);
+        int last = -1;
+        for (JsonNode step : steps) {
+            String key = getStepKey(step);
+            int index = -1;
+            for (int i = 0; i < answer.size() && key != null; i++) {
+                if (key.equals(getStepKey(answer.get(i)))) {
+                    index = i;
+                    break;
                 }
             }
+            if (index >= 0) {
+                answer.set(index, step);
+            } else {
+                index = last + 1;
+                answer.add(index, step);
+            }
+            last = index;
         }
-        return null;
+        return JsonNodeFactory.instance.arrayNode().addAll(answer);
+    }
+
+    private static String getStepKey(JsonNode step) {
+        String kind = step.path("kind").asText();
+        JsonNode name = step.path(kind).get("name");
+        return isBlank(kind) || name == null ? null : kind + "/" + name.asText();
+    }
+
+    private static ObjectNode withoutNulls(ObjectNode patch) {
+        Iterator<Map.Entry<String, JsonNode>> iter = patch.fields();
+        while (iter.hasNext()) {
+            JsonNode value = iter.next().getValue();
+            if (value.isNull()) {
+                iter.remove();
+            } else if (value.isObject()) {
+                withoutNulls((ObjectNode) value);
+            }
+        }
+        return patch;
+    }
+
+    private void acknowledgeQuietly(ActivityOutbox journal, ActivityOutbox.Entry entry) {
+        try {
+            journal.acknowledge(entry.getName(), entry.getSeq());
+        } catch (IOException e) {
+            logger.log(WARNING, "Could not update the pipeline activity journal: " + e, e);
+        }
+    }
+
+    /**
+     * Sends only the labels and spec fields which have changed since the activity was cached, guarded by the cached
+     * <code>resourceVersion</code> so that we get a conflict rather than overwrite changes made by someone else
+     */
+    private PipelineActivity patchActivity(KubernetesClient kubeClient, String namespace, String name, PipelineActivity activity) {
+        JsonNode oldJson = activityCache.getJson(name);
+        JsonNode newJson = Serialization.jsonMapper().valueToTree(activity);
+        ObjectNode patch = oldJson != null ? MergePatch.diff(oldJson, newJson) : (ObjectNode) newJson;
+        JsonNode metadata = patch.get("metadata");
+        ObjectNode metadataPatch = JsonNodeFactory.instance.objectNode();
+        if (metadata != null && metadata.has("labels")) {
+            metadataPatch.set("labels", metadata.get("labels"));
+        }
+        String resourceVersion = activity.getMetadata().getResourceVersion();
+        if (!isBlank(resourceVersion)) {
+            metadataPatch.put("resourceVersion", resourceVersion);
+        }
+        patch.set("metadata", metadataPatch);
+        return callApiServer(SyncMetrics.Call.PATCH, () -> ClientHelper.patchPipelineActivity(kubeClient, namespace, name, patch));
+    }
+
+    /**
+     * Returns true if the plugin is running inside Servlerless Jenkins where we don't have a static master
+     * serving up a UI
+     *
+     * @return true if inside a UI-less servleress jenkins
+     */
+    private boolean isServerlessJenkins() {
+        return Strings.notEmpty(EnvironmentVariableExpander.getenv("PROW_JOB_ID"));
     }
 
     protected String jenkinsURL(KubernetesClient kubeClient, String namespace) {
@@ -528,8 +1149,10 @@ public class BuildSyncRunListener extends RunListener<Run> {
         return this.jenkinsURL;
     }
 
-    protected String getStageName(StageNodeExt stage) {
-        String name = stage.getName();
+    protected String getStageName(String name) {
+        if (name == null) {
+            return "";
+        }
         if ("Declarative: Checkout SCM".equals(name)) {
             return "Checkout Source";
         }
@@ -543,64 +1166,6 @@ public class BuildSyncRunListener extends RunListener<Run> {
         return name;
     }
 
-    protected String toYamlOrRandom(Object data) {
-        try {
-            return toYaml(data);
-        } catch (IOException e) {
-            logger.log(WARNING, "Could not marshal Object " + data + " to YAML: " + e, e);
-            return UUID.randomUUID().toString();
-        }
-    }
-
-    private StageActivityStep getOrCreateStage(PipelineActivitySpec spec, int index) {
-        int i = 0;
-        List<PipelineActivityStep> steps = spec.getSteps();
-        for (PipelineActivityStep step : steps) {
-            StageActivityStep stage = step.getStage();
-            if (stage != null) {
-                if (i++ == index) {
-                    return stage;
-                }
-            }
-        }
-        StageActivityStep answer = null;
-        while (i <= index) {
-            PipelineActivityStep step = new PipelineActivityStep();
-            step.setKind("stage");
-            StageActivityStep stage = new StageActivityStep();
-            step.setStage(stage);
-            steps.add(step);
-            answer = stage;
-            i++;
-        }
-        spec.setSteps(steps);
-        return answer;
-    }
-
-    private String getStageStatus(StatusExt status) {
-        if (status == null) {
-            return "";
-        }
-        switch (status) {
-            case ABORTED:
-                return Statuses.ABORTED;
-            case NOT_EXECUTED:
-                return Statuses.NOT_EXECUTED;
-            case SUCCESS:
-                return Statuses.SUCCEEDED;
-            case IN_PROGRESS:
-                return Statuses.PENDING;
-            case PAUSED_PENDING_INPUT:
-                return Statuses.WAITING_FOR_APPROVAL;
-            case FAILED:
-                return Statuses.FAILED;
-            case UNSTABLE:
-                return Statuses.UNSTABLE;
-            default:
-                return "";
-        }
-    }
-
     private String getStatus(Run run) {
         if (run != null && !run.hasntStartedYet()) {
             if (run.isBuilding()) {
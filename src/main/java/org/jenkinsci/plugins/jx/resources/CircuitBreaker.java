@@ -0,0 +1,175 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * A circuit breaker around the calls we make to the API server.
+ * <p>
+ * While <code>CLOSED</code> every call is allowed and the outcome of the last calls is recorded; a call counts as bad
+ * if it failed or took longer than the slow call threshold. Once enough of the recent calls are bad the breaker
+ * opens and rejects every call until the open duration has passed; it then goes <code>HALF_OPEN</code> and lets a
+ * single probe call through which either closes the breaker again or opens it for another open duration.
+ * <p>
+ * Transitions are logged once rather than logging each failed call.
+ */
+public class CircuitBreaker {
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class.getName());
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final LongSupplier clock;
+    private final boolean[] outcomes;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long slowCallThresholdMs;
+    private final long openDurationMs;
+
+    private State state = State.CLOSED;
+    private int calls;
+    private int next;
+    private int badCalls;
+    private long openedAt;
+    private boolean probing;
+
+    /**
+     * @param windowSize           the number of recent calls to look at
+     * @param minimumCalls         the number of calls needed before the breaker can open
+     * @param failureRateThreshold the fraction of bad calls which opens the breaker
+     * @param slowCallThresholdMs  calls which take longer than this count as bad
+     * @param openDurationMs       how long the breaker stays open before it lets a probe call through
+     */
+    public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, long slowCallThresholdMs, long openDurationMs) {
+        this(windowSize, minimumCalls, failureRateThreshold, slowCallThresholdMs, openDurationMs, System::currentTimeMillis);
+    }
+
+    CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, long slowCallThresholdMs, long openDurationMs, LongSupplier clock) {
+        this.outcomes = new boolean[Math.max(1, windowSize)];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, outcomes.length));
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallThresholdMs = slowCallThresholdMs;
+        this.openDurationMs = openDurationMs;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns true if a call may be made now; when half open only one probe call is allowed until its outcome is
+     * recorded
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case OPEN:
+                if (clock.getAsLong() - openedAt < openDurationMs) {
+                    return false;
+                }
+                transition(State.HALF_OPEN);
+                probing = true;
+                return true;
+            case HALF_OPEN:
+                if (probing) {
+                    return false;
+                }
+                probing = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Records a call which succeeded
+     *
+     * @param latencyMs how long the call took
+     */
+    public synchronized void onSuccess(long latencyMs) {
+        boolean slow = latencyMs > slowCallThresholdMs;
+        if (state == State.HALF_OPEN) {
+            probing = false;
+            if (slow) {
+                open();
+            } else {
+                transition(State.CLOSED);
+            }
+            return;
+        }
+        record(slow);
+    }
+
+    /**
+     * Records a call which failed in a way which suggests the API server is unhealthy
+     *
+     * @param latencyMs how long the call took
+     */
+    public synchronized void onFailure(long latencyMs) {
+        if (state == State.HALF_OPEN) {
+            probing = false;
+            open();
+            return;
+        }
+        record(true);
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the number of milliseconds until an open breaker lets a probe call through or zero if it is not open
+     */
+    public synchronized long getRemainingOpenMs() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, openDurationMs - (clock.getAsLong() - openedAt));
+    }
+
+    private void record(boolean bad) {
+        if (state != State.CLOSED) {
+            return;
+        }
+        if (calls == outcomes.length) {
+            if (outcomes[next]) {
+                badCalls--;
+            }
+        } else {
+            calls++;
+        }
+        outcomes[next] = bad;
+        if (bad) {
+            badCalls++;
+        }
+        next = (next + 1) % outcomes.length;
+        if (calls >= minimumCalls && badCalls >= failureRateThreshold * calls) {
+            open();
+        }
+    }
+
+    private void open() {
+        openedAt = clock.getAsLong();
+        transition(State.OPEN);
+    }
+
+    private void transition(State newState) {
+        if (state == newState) {
+            return;
+        }
+        State oldState = state;
+        state = newState;
+        if (newState == State.CLOSED) {
+            calls = 0;
+            next = 0;
+            badCalls = 0;
+            logger.log(INFO, "The API server has recovered, syncing PipelineActivity resources again");
+        } else if (newState == State.OPEN && oldState == State.CLOSED) {
+            logger.log(WARNING, "Too many calls to the API server are failing or slow, journaling PipelineActivity updates for " + openDurationMs + "ms");
+        } else {
+            logger.log(FINE, "Circuit breaker for the API server is now " + newState);
+        }
+    }
+}
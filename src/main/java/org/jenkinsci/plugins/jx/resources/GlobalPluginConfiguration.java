@@ -6,6 +6,7 @@ import hudson.triggers.SafeTimerTask;
 import hudson.util.FormValidation;
 import io.fabric8.kubernetes.client.KubernetesClient;
 import io.jenkins.x.client.kube.ClientHelper;
+import io.jenkins.x.client.kube.PipelineActivityPage;
 import jenkins.model.GlobalConfiguration;
 import jenkins.model.Jenkins;
 import jenkins.util.Timer;
@@ -25,12 +26,30 @@ public class GlobalPluginConfiguration extends GlobalConfiguration {
 
     private static final transient Logger logger = Logger.getLogger(GlobalPluginConfiguration.class.getName());
 
+    public static final long DEFAULT_MAX_FLUSH_DELAY = 1000;
+    public static final int DEFAULT_SYNC_WORKERS = 4;
+    public static final int DEFAULT_WRITE_RATE_LIMIT = 50;
+    public static final int DEFAULT_WRITE_BURST = 100;
+    public static final int DEFAULT_ACTIVITY_CACHE_SIZE = 1000;
+
     private boolean enabled = true;
 
     private String server;
 
     private String namespace;
 
+    private long maxFlushDelay = DEFAULT_MAX_FLUSH_DELAY;
+
+    private int syncWorkers = DEFAULT_SYNC_WORKERS;
+
+    private int writeRateLimit = DEFAULT_WRITE_RATE_LIMIT;
+
+    private int writeBurst = DEFAULT_WRITE_BURST;
+
+    private int activityCacheSize = DEFAULT_ACTIVITY_CACHE_SIZE;
+
+    private int maxMetricSeries = PipelineMetrics.DEFAULT_MAX_SERIES;
+
     public GlobalPluginConfiguration() {
         load();
         configChange();
@@ -80,6 +99,105 @@ public class GlobalPluginConfiguration extends GlobalConfiguration {
         this.namespace = namespace;
     }
 
+    /**
+     * Returns the maximum number of milliseconds we wait to coalesce changes to a running build before updating its
+     * PipelineActivity
+     */
+    public long getMaxFlushDelay() {
+        return maxFlushDelay;
+    }
+
+    public void setMaxFlushDelay(long maxFlushDelay) {
+        this.maxFlushDelay = maxFlushDelay;
+    }
+
+    /**
+     * Returns the number of threads used to sync different builds in parallel
+     */
+    public int getSyncWorkers() {
+        return syncWorkers;
+    }
+
+    public void setSyncWorkers(int syncWorkers) {
+        this.syncWorkers = syncWorkers;
+    }
+
+    /**
+     * Returns the maximum number of calls per second we make to the API server to sync PipelineActivity resources
+     * or zero if there is no limit
+     */
+    public int getWriteRateLimit() {
+        return writeRateLimit;
+    }
+
+    public void setWriteRateLimit(int writeRateLimit) {
+        this.writeRateLimit = writeRateLimit;
+    }
+
+    /**
+     * Returns the number of calls to the API server which can be made at once before the rate limit applies
+     */
+    public int getWriteBurst() {
+        return writeBurst;
+    }
+
+    public void setWriteBurst(int writeBurst) {
+        this.writeBurst = writeBurst;
+    }
+
+    /**
+     * Returns the minimum number of PipelineActivity resources we cache; the cache grows beyond this while we are
+     * syncing more builds than this at once
+     */
+    public int getActivityCacheSize() {
+        return activityCacheSize;
+    }
+
+    public void setActivityCacheSize(int activityCacheSize) {
+        this.activityCacheSize = activityCacheSize;
+    }
+
+    /**
+     * Returns the maximum number of series of build and stage metrics we keep
+     */
+    public int getMaxMetricSeries() {
+        return maxMetricSeries;
+    }
+
+    public void setMaxMetricSeries(int maxMetricSeries) {
+        this.maxMetricSeries = maxMetricSeries;
+    }
+
+    /**
+     * Returns a description of how well we are syncing with the API server so that operators can see when the
+     * plugin is running in degraded mode
+     */
+    public String getSyncStatus() {
+        BuildSyncRunListener listener = BuildSyncRunListener.get();
+        if (listener == null) {
+            return "Not running";
+        }
+        CircuitBreaker.State state = listener.getCircuitBreaker().getState();
+        int journaled = listener.getJournaledActivityCount();
+        if (state == CircuitBreaker.State.CLOSED && journaled == 0) {
+            return "Healthy";
+        }
+        StringBuilder builder = new StringBuilder("Degraded");
+        switch (state) {
+            case OPEN:
+                builder.append(": the API server is failing or slow so calls are paused for another ")
+                        .append(listener.getCircuitBreaker().getRemainingOpenMs() / 1000).append("s");
+                break;
+            case HALF_OPEN:
+                builder.append(": checking if the API server has recovered");
+                break;
+            default:
+                builder.append(": replaying journaled updates");
+        }
+        builder.append(", ").append(journaled).append(" PipelineActivity updates journaled");
+        return builder.toString();
+    }
+
     private void configChange() {
         try {
             if (!enabled) {
@@ -134,8 +252,15 @@ public class GlobalPluginConfiguration extends GlobalConfiguration {
             KubernetesUtils.shutdownKubernetesClient();
             KubernetesClient kubeClient = KubernetesUtils.getKubernetesClient(server, this);
             String ns = getNamespaceOrUseDefault(namespace, kubeClient);
-            int size = ClientHelper.pipelineActivityClient(kubeClient, ns).list().getItems().size();
-            return FormValidation.ok("Found (at least) " + size + " existing build records in namespace " + ns);
+            // only fetch one activity as the namespace may hold far too many to load
+            PipelineActivityPage page = ClientHelper.listPipelineActivities(kubeClient, ns, 1, null);
+            if (page.getRemainingItemCount() != null) {
+                return FormValidation.ok("Found " + (page.getItems().size() + page.getRemainingItemCount()) + " existing build records in namespace " + ns);
+            }
+            if (page.hasMore()) {
+                return FormValidation.ok("Found existing build records in namespace " + ns);
+            }
+            return FormValidation.ok("Found " + page.getItems().size() + " existing build records in namespace " + ns);
         } catch (Exception x) {
             return FormValidation.error(x, "Could not check server connection");
         }
@@ -0,0 +1,107 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread safe histogram with fixed bucket bounds which can be updated concurrently without locking
+ */
+public class Histogram {
+    /**
+     * Bucket bounds in milliseconds suitable for API calls and sync latencies
+     */
+    public static final double[] LATENCY_MS_BOUNDS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+    private final double[] bounds;
+    private final LongAdder[] buckets;
+    private final DoubleAdder sum = new DoubleAdder();
+    private final DoubleAccumulator max = new DoubleAccumulator(Math::max, 0);
+
+    /**
+     * @param bounds the ascending upper bounds of the buckets; values above the last bound go into an overflow bucket
+     */
+    public Histogram(double... bounds) {
+        this.bounds = bounds.clone();
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void observe(double value) {
+        int index = Arrays.binarySearch(bounds, value);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        buckets[index].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public double getSum() {
+        return sum.sum();
+    }
+
+    public double getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count > 0 ? getSum() / count : 0;
+    }
+
+    /**
+     * Returns the upper bounds of the buckets, not including the overflow bucket
+     */
+    public double[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * Returns the number of values in each bucket, the last being the overflow bucket
+     */
+    public long[] getBucketCounts() {
+        long[] answer = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            answer[i] = buckets[i].sum();
+        }
+        return answer;
+    }
+
+    /**
+     * Returns an estimate of the given quantile which is the upper bound of the bucket it falls in, or the maximum
+     * value if it falls in the overflow bucket
+     *
+     * @param quantile the quantile between 0 and 1
+     */
+    public double getQuantile(double quantile) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bounds[i], getMax());
+            }
+        }
+        return getMax();
+    }
+}
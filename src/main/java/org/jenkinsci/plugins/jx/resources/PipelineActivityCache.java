@@ -0,0 +1,109 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.fabric8.kubernetes.client.utils.Serialization;
+import io.jenkins.x.client.kube.Fingerprints;
+import io.jenkins.x.client.kube.PipelineActivity;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded in memory cache of the last {@link PipelineActivity} we wrote to or read from the API server, keyed by
+ * the activity name, so that we only need to talk to the API server when something changes.
+ * <p>
+ * We also keep the JSON of each activity as it was on the server so that we can send just the fields we change.
+ * <p>
+ * The maximum size can be changed while the cache is in use so that it can grow with the number of builds we sync.
+ */
+public class PipelineActivityCache {
+    private final Map<String, Entry> activities;
+    private int maxSize;
+
+    public PipelineActivityCache(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+        this.activities = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > PipelineActivityCache.this.maxSize;
+            }
+        };
+    }
+
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Changes the maximum number of cached activities, dropping the least recently used ones if there are too many
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+        while (activities.size() > this.maxSize) {
+            activities.remove(activities.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Returns the cached activity for the given name or null if it is not cached
+     */
+    public synchronized PipelineActivity get(String name) {
+        Entry entry = activities.get(name);
+        return entry != null ? entry.activity : null;
+    }
+
+    /**
+     * Returns the JSON of the cached activity as it was on the server or null if it is not cached
+     */
+    public synchronized JsonNode getJson(String name) {
+        Entry entry = activities.get(name);
+        return entry != null ? entry.json : null;
+    }
+
+    /**
+     * Returns the {@link Fingerprints fingerprint} of the spec of the cached activity as it was on the server or 0 if
+     * it is not cached
+     */
+    public synchronized long getFingerprint(String name) {
+        Entry entry = activities.get(name);
+        return entry != null ? entry.fingerprint : 0;
+    }
+
+    /**
+     * Caches the activity which has just been written to or read from the API server
+     */
+    public void put(String name, PipelineActivity activity) {
+        JsonNode json = Serialization.jsonMapper().valueToTree(activity);
+        long fingerprint = Fingerprints.of(activity.getSpec());
+        synchronized (this) {
+            activities.put(name, new Entry(activity, json, fingerprint));
+        }
+    }
+
+    /**
+     * Removes the activity from the cache so that it is loaded again from the API server next time
+     */
+    public synchronized void invalidate(String name) {
+        activities.remove(name);
+    }
+
+    public synchronized void clear() {
+        activities.clear();
+    }
+
+    public synchronized int size() {
+        return activities.size();
+    }
+
+    private static class Entry {
+        private final PipelineActivity activity;
+        private final JsonNode json;
+        private final long fingerprint;
+
+        Entry(PipelineActivity activity, JsonNode json, long fingerprint) {
+            this.activity = activity;
+            this.json = json;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps histograms of how long builds, stages and queued builds take along with counts of their statuses, labelled
+ * by the git owner, repository and branch of the pipeline, and writes them in the
+ * <a href="https://prometheus.io/docs/instrumenting/exposition_formats/">Prometheus text format</a>.
+ * <p>
+ * Branch and stage names are chosen by users so the number of series is capped; once the cap is reached all the
+ * series of the pipeline branch which was updated least recently are dropped together, across every family, so that
+ * the histograms and counters of a branch are always kept or dropped as one. A single branch with more series than
+ * the cap is never dropped while it is being updated. Prometheus treats a dropped series which comes back as a
+ * counter reset.
+ */
+public class PipelineMetrics {
+    public static final int DEFAULT_MAX_SERIES = 5000;
+    private static final int MAX_LABEL_LENGTH = 100;
+    private static final int MAX_QUEUED_ITEMS = 1000;
+    /**
+     * The number of leading labels, the owner, repository and branch, which every family shares
+     */
+    private static final int PIPELINE_LABELS = 3;
+    private static final double[] BUILD_SECONDS_BOUNDS = {5, 10, 30, 60, 120, 300, 600, 1200, 1800, 3600, 7200, 14400};
+    private static final double[] STAGE_SECONDS_BOUNDS = {1, 5, 10, 30, 60, 120, 300, 600, 1200, 1800, 3600, 7200};
+    private static final double[] QUEUE_SECONDS_BOUNDS = {0.1, 0.5, 1, 5, 10, 30, 60, 120, 300, 600, 1800, 3600};
+
+    enum Family {
+        BUILD_DURATION("jx_pipeline_build_duration_seconds", "How long builds took", BUILD_SECONDS_BOUNDS,
+                "owner", "repository", "branch"),
+        QUEUE_TIME("jx_pipeline_queue_time_seconds", "How long builds waited in the queue before they started", QUEUE_SECONDS_BOUNDS,
+                "owner", "repository", "branch"),
+        STAGE_DURATION("jx_pipeline_stage_duration_seconds", "How long stages took", STAGE_SECONDS_BOUNDS,
+                "owner", "repository", "branch", "stage"),
+        BUILDS("jx_pipeline_builds_total", "The number of completed builds by status", null,
+                "owner", "repository", "branch", "status"),
+        STAGES("jx_pipeline_stages_total", "The number of completed stages by status", null,
+                "owner", "repository", "branch", "stage", "status");
+
+        private final String name;
+        private final String help;
+        private final double[] bounds;
+        private final String[] labels;
+
+        Family(String name, String help, double[] bounds, String... labels) {
+            this.name = name;
+            this.help = help;
+            this.bounds = bounds;
+            this.labels = labels;
+        }
+
+        boolean isHistogram() {
+            return bounds != null;
+        }
+    }
+
+    /**
+     * The series of each pipeline branch, with the branch which was updated least recently first
+     */
+    private final LinkedHashMap<List<String>, Map<SeriesKey, Object>> pipelines = new LinkedHashMap<>(64, 0.75f, true);
+    private int seriesCount;
+    private final LinkedHashMap<Long, Long> queuedSince = new LinkedHashMap<Long, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MAX_QUEUED_ITEMS;
+        }
+    };
+    private final LongAdder evictedSeries = new LongAdder();
+    private volatile int maxSeries;
+
+    public PipelineMetrics(int maxSeries) {
+        setMaxSeries(maxSeries);
+    }
+
+    public int getMaxSeries() {
+        return maxSeries;
+    }
+
+    public synchronized void setMaxSeries(int maxSeries) {
+        this.maxSeries = Math.max(1, maxSeries);
+        evict(null);
+    }
+
+    /**
+     * Remembers when a queue item which is about to start was queued so that we can work out how long its build
+     * waited; we only keep the most recent items in case their builds never start
+     */
+    public void onLeftQueue(long queueId, long inQueueSince) {
+        synchronized (queuedSince) {
+            queuedSince.put(queueId, inQueueSince);
+        }
+    }
+
+    /**
+     * Returns when the queue item of a build was queued or zero if we don't know
+     */
+    public long takeQueuedSince(long queueId) {
+        synchronized (queuedSince) {
+            Long answer = queuedSince.remove(queueId);
+            return answer != null ? answer : 0;
+        }
+    }
+
+    /**
+     * Records a completed build
+     *
+     * @param queueTimeMs how long the build waited in the queue or a negative number if we don't know
+     */
+    public void recordBuild(String owner, String repository, String branch, String status, long durationMs, long queueTimeMs) {
+        if (durationMs >= 0) {
+            histogram(Family.BUILD_DURATION, owner, repository, branch).observe(durationMs / 1000.0);
+        }
+        if (queueTimeMs >= 0) {
+            histogram(Family.QUEUE_TIME, owner, repository, branch).observe(queueTimeMs / 1000.0);
+        }
+        counter(Family.BUILDS, owner, repository, branch, status).increment();
+    }
+
+    /**
+     * Records a completed stage of a build
+     */
+    public void recordStage(String owner, String repository, String branch, String stage, String status, long durationMs) {
+        if (durationMs >= 0) {
+            histogram(Family.STAGE_DURATION, owner, repository, branch, stage).observe(durationMs / 1000.0);
+        }
+        counter(Family.STAGES, owner, repository, branch, stage, status).increment();
+    }
+
+    public synchronized int getSeriesCount() {
+        return seriesCount;
+    }
+
+    public long getEvictedSeries() {
+        return evictedSeries.sum();
+    }
+
+    private Histogram histogram(Family family, String... labels) {
+        return (Histogram) getOrCreate(family, labels);
+    }
+
+    private LongAdder counter(Family family, String... labels) {
+        return (LongAdder) getOrCreate(family, labels);
+    }
+
+    private synchronized Object getOrCreate(Family family, String... labels) {
+        SeriesKey key = new SeriesKey(family, labels);
+        List<String> pipeline = key.getPipeline();
+        Map<SeriesKey, Object> pipelineSeries = pipelines.get(pipeline);
+        if (pipelineSeries == null) {
+            pipelineSeries = new LinkedHashMap<>();
+            pipelines.put(pipeline, pipelineSeries);
+        }
+        Object answer = pipelineSeries.get(key);
+        if (answer == null) {
+            answer = family.isHistogram() ? new Histogram(family.bounds) : new LongAdder();
+            pipelineSeries.put(key, answer);
+            seriesCount++;
+            evict(pipelineSeries);
+        }
+        return answer;
+    }
+
+    /**
+     * Drops the series of the least recently updated pipeline branches until we are within the cap
+     *
+     * @param keep the series of the branch being updated which are never dropped
+     */
+    private void evict(Map<SeriesKey, Object> keep) {
+        Iterator<Map<SeriesKey, Object>> iter = pipelines.values().iterator();
+        while (seriesCount > maxSeries && iter.hasNext()) {
+            Map<SeriesKey, Object> eldest = iter.next();
+            if (eldest == keep) {
+                continue;
+            }
+            iter.remove();
+            seriesCount -= eldest.size();
+            evictedSeries.add(eldest.size());
+        }
+    }
+
+    /**
+     * Writes all the series in the Prometheus text format
+     */
+    public void write(Writer writer) throws IOException {
+        List<Map.Entry<SeriesKey, Object>> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(seriesCount);
+            for (Map<SeriesKey, Object> pipelineSeries : pipelines.values()) {
+                snapshot.addAll(pipelineSeries.entrySet());
+            }
+        }
+        StringBuilder out = new StringBuilder();
+        for (Family family : Family.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(family.isHistogram() ? " histogram" : " counter").append('\n');
+            for (Map.Entry<SeriesKey, Object> entry : snapshot) {
+                SeriesKey key = entry.getKey();
+                if (key.family != family) {
+                    continue;
+                }
+                if (family.isHistogram()) {
+                    writeHistogram(out, key, (Histogram) entry.getValue());
+                } else {
+                    writeSample(out, family.name, key, null, ((LongAdder) entry.getValue()).sum());
+                }
+            }
+        }
+        out.append("# HELP jx_pipeline_metrics_series The number of series being kept\n");
+        out.append("# TYPE jx_pipeline_metrics_series gauge\n");
+        out.append("jx_pipeline_metrics_series ").append(snapshot.size()).append('\n');
+        out.append("# HELP jx_pipeline_metrics_evicted_series_total The number of series dropped because there were too many\n");
+        out.append("# TYPE jx_pipeline_metrics_evicted_series_total counter\n");
+        out.append("jx_pipeline_metrics_evicted_series_total ").append(getEvictedSeries()).append('\n');
+        writer.write(out.toString());
+    }
+
+    private static void writeHistogram(StringBuilder out, SeriesKey key, Histogram histogram) {
+        String name = key.family.name;
+        double[] bounds = histogram.getBounds();
+        long[] counts = histogram.getBucketCounts();
+        long cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += counts[i];
+            writeSample(out, name + "_bucket", key, Double.toString(bounds[i]), cumulative);
+        }
+        cumulative += counts[bounds.length];
+        writeSample(out, name + "_bucket", key, "+Inf", cumulative);
+        out.append(name).append("_sum");
+        writeLabels(out, key, null);
+        out.append(' ').append(histogram.getSum()).append('\n');
+        writeSample(out, name + "_count", key, null, cumulative);
+    }
+
+    private static void writeSample(StringBuilder out, String name, SeriesKey key, String le, long value) {
+        out.append(name);
+        writeLabels(out, key, le);
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static void writeLabels(StringBuilder out, SeriesKey key, String le) {
+        out.append('{');
+        String[] names = key.family.labels;
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(names[i]).append("=\"");
+            escape(out, key.labels[i]);
+            out.append('"');
+        }
+        if (le != null) {
+            out.append(",le=\"").append(le).append('"');
+        }
+        out.append('}');
+    }
+
+    private static void escape(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    private static final class SeriesKey {
+        private final Family family;
+        private final String[] labels;
+        private final int hash;
+
+        SeriesKey(Family family, String[] labels) {
+            this.family = family;
+            this.labels = new String[labels.length];
+            for (int i = 0; i < labels.length; i++) {
+                String label = labels[i] != null ? labels[i] : "";
+                this.labels[i] = label.length() > MAX_LABEL_LENGTH ? label.substring(0, MAX_LABEL_LENGTH) : label;
+            }
+            this.hash = 31 * family.hashCode() + Arrays.hashCode(this.labels);
+        }
+
+        List<String> getPipeline() {
+            return Arrays.asList(Arrays.copyOf(labels, PIPELINE_LABELS));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey that = (SeriesKey) o;
+            return family == that.family && Arrays.equals(labels, that.labels);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Serves the {@link PipelineMetrics} at <code>/jx-metrics/</code> for Prometheus to scrape; like any other page it
+ * needs the overall read permission
+ */
+@Extension
+public class PipelineMetricsAction implements RootAction {
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Jenkins X Pipeline Metrics";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "jx-metrics";
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        BuildSyncRunListener listener = BuildSyncRunListener.get();
+        if (listener == null) {
+            rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+            return;
+        }
+        rsp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        try (Writer writer = rsp.getWriter()) {
+            listener.getPipelineMetrics().write(writer);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The poll interval of a single run which backs off exponentially while the activity of the run does not change
+ * and snaps back to the minimum interval as soon as it does.
+ * <p>
+ * Each delay is jittered by up to 20% so that runs which start together do not all poll on the same tick.
+ */
+public class PollBackoff {
+    private final long minIntervalMs;
+    private final long maxIntervalMs;
+    private long intervalMs;
+
+    public PollBackoff(long minIntervalMs, long maxIntervalMs) {
+        this.minIntervalMs = minIntervalMs;
+        this.maxIntervalMs = maxIntervalMs;
+        this.intervalMs = minIntervalMs;
+    }
+
+    /**
+     * Goes back to polling at the minimum interval such as when a stage starts or ends
+     */
+    public synchronized void reset() {
+        intervalMs = minIntervalMs;
+    }
+
+    /**
+     * Returns the delay until the next poll
+     *
+     * @param changed whether the last poll found a change
+     * @return the jittered delay in milliseconds
+     */
+    public synchronized long nextDelay(boolean changed) {
+        if (changed) {
+            intervalMs = minIntervalMs;
+        } else {
+            intervalMs = Math.min(intervalMs * 2, maxIntervalMs);
+        }
+        return jitter(intervalMs);
+    }
+
+    public synchronized long getIntervalMs() {
+        return intervalMs;
+    }
+
+    static long jitter(long intervalMs) {
+        long spread = intervalMs / 5;
+        return intervalMs - spread + ThreadLocalRandom.current().nextLong(2 * spread + 1);
+    }
+}
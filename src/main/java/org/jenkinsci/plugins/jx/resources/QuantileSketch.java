@@ -0,0 +1,216 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A mergeable streaming quantile sketch in the style of
+ * <a href="https://arxiv.org/abs/1908.10693">DDSketch</a>: values go into logarithmically sized buckets so that any
+ * quantile is estimated within a fixed relative error, no matter how many values were added.
+ * <p>
+ * The buckets are kept in a dense array which never grows beyond the maximum number of buckets; if the values span
+ * more than that the lowest buckets are collapsed together, which only loses accuracy for the smallest values. Values
+ * below one are counted as zero. This class is not thread safe.
+ */
+public class QuantileSketch {
+    public static final double DEFAULT_RELATIVE_ACCURACY = 0.02;
+    public static final int DEFAULT_MAX_BUCKETS = 256;
+
+    private final double gamma;
+    private final double logGamma;
+    private final int maxBuckets;
+    private long[] counts = new long[0];
+    private int offset;
+    private long zeroCount;
+    private long count;
+
+    public QuantileSketch() {
+        this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_BUCKETS);
+    }
+
+    public QuantileSketch(double relativeAccuracy, int maxBuckets) {
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+        this.maxBuckets = maxBuckets;
+    }
+
+    public void add(double value) {
+        count++;
+        if (value < 1) {
+            zeroCount++;
+            return;
+        }
+        int index = (int) Math.ceil(Math.log(value) / logGamma);
+        ensureCapacity(index, index);
+        counts[Math.max(0, index - offset)]++;
+    }
+
+    /**
+     * Adds all the values of the other sketch which must have the same relative accuracy
+     */
+    public void merge(QuantileSketch other) {
+        if (other.gamma != gamma) {
+            throw new IllegalArgumentException("Cannot merge sketches with different accuracies");
+        }
+        count += other.count;
+        zeroCount += other.zeroCount;
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < other.counts.length; i++) {
+            if (other.counts[i] > 0) {
+                last = i;
+                if (first < 0) {
+                    first = i;
+                }
+            }
+        }
+        if (first < 0) {
+            return;
+        }
+        ensureCapacity(other.offset + first, other.offset + last);
+        for (int i = first; i <= last; i++) {
+            counts[Math.max(0, other.offset + i - offset)] += other.counts[i];
+        }
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the number of buckets currently allocated
+     */
+    public int getBucketCount() {
+        return counts.length;
+    }
+
+    /**
+     * Returns the estimate of the given quantile or zero if the sketch is empty
+     *
+     * @param quantile the quantile between 0 and 1
+     */
+    public double getQuantile(double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        double rank = quantile * (count - 1);
+        long seen = zeroCount;
+        if (seen > rank) {
+            return 0;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen > rank) {
+                return 2 * Math.pow(gamma, offset + i) / (1 + gamma);
+            }
+        }
+        return 2 * Math.pow(gamma, offset + counts.length - 1) / (1 + gamma);
+    }
+
+    /**
+     * Makes sure there are buckets for the given indexes, collapsing the lowest buckets if there would be too many
+     */
+    private void ensureCapacity(int minIndex, int maxIndex) {
+        if (counts.length == 0) {
+            int span = maxIndex - minIndex + 1;
+            int length = Math.min(maxBuckets, Math.max(16, span));
+            counts = new long[length];
+            offset = span > length ? maxIndex - length + 1 : minIndex - (length - span) / 2;
+            return;
+        }
+        int currentMax = offset + counts.length - 1;
+        if (minIndex >= offset && maxIndex <= currentMax) {
+            return;
+        }
+        int newMin = Math.min(minIndex, offset);
+        int newMax = Math.max(maxIndex, currentMax);
+        int span = newMax - newMin + 1;
+        // grow geometrically, leaving the spare buckets on the side we are growing towards
+        int length = Math.min(maxBuckets, Math.max(span, counts.length * 2));
+        int newOffset = span > length || minIndex < offset ? newMax - length + 1 : newMin;
+        if (length == counts.length && newOffset == offset) {
+            return;
+        }
+        long[] newCounts = new long[length];
+        for (int i = 0; i < counts.length; i++) {
+            newCounts[Math.max(0, offset + i - newOffset)] += counts[i];
+        }
+        counts = newCounts;
+        offset = newOffset;
+    }
+
+    /**
+     * Writes the sketch compactly; only the occupied range of buckets is written, as variable length integers
+     */
+    public void write(DataOutput out) throws IOException {
+        int first = 0;
+        while (first < counts.length && counts[first] == 0) {
+            first++;
+        }
+        int last = counts.length - 1;
+        while (last >= first && counts[last] == 0) {
+            last--;
+        }
+        writeVarLong(out, count);
+        writeVarLong(out, zeroCount);
+        if (first > last) {
+            writeVarLong(out, 0);
+            return;
+        }
+        writeVarLong(out, last - first + 1);
+        int index = offset + first;
+        writeVarLong(out, (index << 1) ^ (index >> 31));
+        for (int i = first; i <= last; i++) {
+            writeVarLong(out, counts[i]);
+        }
+    }
+
+    /**
+     * Reads a sketch written by {@link #write(DataOutput)} with the default accuracy and number of buckets
+     */
+    public static QuantileSketch read(DataInput in) throws IOException {
+        QuantileSketch answer = new QuantileSketch();
+        answer.count = readVarLong(in);
+        answer.zeroCount = readVarLong(in);
+        int length = (int) readVarLong(in);
+        if (length < 0 || length > answer.maxBuckets) {
+            throw new IOException("Invalid number of buckets " + length);
+        }
+        if (length > 0) {
+            int zigzag = (int) readVarLong(in);
+            answer.offset = (zigzag >>> 1) ^ -(zigzag & 1);
+            answer.counts = new long[length];
+            for (int i = 0; i < length; i++) {
+                answer.counts[i] = readVarLong(in);
+            }
+        }
+        return answer;
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long answer = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            answer |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return answer;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    @Override
+    public String toString() {
+        return "QuantileSketch{count=" + count + ", zeroCount=" + zeroCount + ", offset=" + offset + ", counts=" + Arrays.toString(counts) + "}";
+    }
+}
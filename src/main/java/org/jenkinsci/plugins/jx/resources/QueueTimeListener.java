@@ -0,0 +1,23 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+
+/**
+ * Remembers when the queue items of pipelines were queued so that we can report how long their builds waited
+ */
+@Extension
+public class QueueTimeListener extends QueueListener {
+
+    @Override
+    public void onLeft(Queue.LeftItem li) {
+        if (li.isCancelled()) {
+            return;
+        }
+        BuildSyncRunListener listener = BuildSyncRunListener.get();
+        if (listener != null) {
+            listener.getPipelineMetrics().onLeftQueue(li.getId(), li.getInQueueSince());
+        }
+    }
+}
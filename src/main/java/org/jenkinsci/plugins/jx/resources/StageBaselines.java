@@ -0,0 +1,163 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Keeps a {@link QuantileSketch} of the durations of each stage of each pipeline so that we can tell when a stage
+ * is much slower than it used to be.
+ * <p>
+ * Memory is bounded by keeping at most a fixed number of sketches, dropping the one which was used least recently,
+ * and each sketch has a fixed maximum number of buckets. The sketches are saved to a compact binary file so that the
+ * baselines survive a restart of Jenkins.
+ */
+public class StageBaselines {
+    private static final Logger logger = Logger.getLogger(StageBaselines.class.getName());
+    public static final int DEFAULT_MAX_SKETCHES = 2000;
+    /**
+     * The number of durations a stage needs before we trust its baseline
+     */
+    public static final int MIN_SAMPLES = 20;
+    private static final int MAGIC = 0x4a585342;
+    private static final int VERSION = 1;
+
+    private final Path file;
+    private final int maxSketches;
+    private final LinkedHashMap<String, QuantileSketch> sketches;
+    private boolean dirty;
+
+    public StageBaselines(Path file, int maxSketches) {
+        this.file = file;
+        this.maxSketches = maxSketches;
+        this.sketches = new LinkedHashMap<String, QuantileSketch>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, QuantileSketch> eldest) {
+                return size() > StageBaselines.this.maxSketches;
+            }
+        };
+    }
+
+    /**
+     * Records the duration of a completed stage
+     *
+     * @return the 95th percentile duration of the stage before this one was recorded if this one took longer, or -1
+     * if it did not or we don't have enough history yet
+     */
+    public synchronized long record(String pipeline, String stage, long durationMs) {
+        String key = key(pipeline, stage);
+        QuantileSketch sketch = sketches.get(key);
+        if (sketch == null) {
+            sketch = new QuantileSketch();
+            sketches.put(key, sketch);
+        }
+        long answer = -1;
+        if (sketch.getCount() >= MIN_SAMPLES) {
+            long p95 = Math.round(sketch.getQuantile(0.95));
+            if (durationMs > p95) {
+                answer = p95;
+            }
+        }
+        sketch.add(durationMs);
+        dirty = true;
+        return answer;
+    }
+
+    /**
+     * Returns the estimated quantile of the durations of the stage or -1 if we have no history of it
+     */
+    public synchronized long getQuantile(String pipeline, String stage, double quantile) {
+        QuantileSketch sketch = sketches.get(key(pipeline, stage));
+        return sketch != null && sketch.getCount() > 0 ? Math.round(sketch.getQuantile(quantile)) : -1;
+    }
+
+    public synchronized int size() {
+        return sketches.size();
+    }
+
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Loads the sketches saved by a previous run of Jenkins; a corrupt file is ignored so that we just start again
+     */
+    public synchronized void load() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.log(WARNING, "Ignoring stage baselines in unknown format " + file);
+                return;
+            }
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                String pipeline = in.readUTF();
+                String stage = in.readUTF();
+                sketches.put(key(pipeline, stage), QuantileSketch.read(in));
+            }
+        } catch (IOException e) {
+            logger.log(WARNING, "Ignoring corrupt stage baselines " + file + ": " + e, e);
+        }
+    }
+
+    /**
+     * Saves the sketches if any have changed since they were last saved, replacing the file atomically
+     */
+    public void save() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sketches.size());
+            for (Map.Entry<String, QuantileSketch> entry : sketches.entrySet()) {
+                String key = entry.getKey();
+                int idx = key.indexOf('\0');
+                out.writeUTF(key.substring(0, idx));
+                out.writeUTF(key.substring(idx + 1));
+                entry.getValue().write(out);
+            }
+            out.flush();
+            dirty = false;
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            throw e;
+        }
+    }
+
+    private static String key(String pipeline, String stage) {
+        return (pipeline != null ? pipeline : "") + '\0' + (stage != null ? stage : "");
+    }
+}
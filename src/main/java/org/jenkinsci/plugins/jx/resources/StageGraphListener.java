@@ -0,0 +1,162 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.Run;
+import org.jenkinsci.plugins.workflow.actions.LabelAction;
+import org.jenkinsci.plugins.workflow.actions.ThreadNameAction;
+import org.jenkinsci.plugins.workflow.cps.nodes.StepAtomNode;
+import org.jenkinsci.plugins.workflow.cps.nodes.StepStartNode;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionListener;
+import org.jenkinsci.plugins.workflow.flow.GraphListener;
+import org.jenkinsci.plugins.workflow.graph.BlockEndNode;
+import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+
+/**
+ * Watches the flow graph of running pipelines and tells the {@link BuildSyncRunListener} when a stage starts,
+ * ends or changes status so that the run is synced as soon as something changes rather than on every poll
+ */
+@Extension
+public class StageGraphListener extends FlowExecutionListener {
+    private static final Logger logger = Logger.getLogger(StageGraphListener.class.getName());
+
+    @Override
+    public void onRunning(@Nonnull FlowExecution execution) {
+        addGraphListener(execution);
+    }
+
+    @Override
+    public void onResumed(@Nonnull FlowExecution execution) {
+        addGraphListener(execution);
+        Run run = getRun(execution);
+        BuildSyncRunListener listener = BuildSyncRunListener.get();
+        if (run != null && listener != null) {
+            listener.onResumed(run);
+        }
+    }
+
+    @Override
+    public void onCompleted(@Nonnull FlowExecution execution) {
+        Run run = getRun(execution);
+        if (run != null) {
+            stageGraphChanged(run);
+        }
+    }
+
+    protected void addGraphListener(FlowExecution execution) {
+        Run run = getRun(execution);
+        if (run != null) {
+            execution.addListener(new RunGraphListener(run));
+        }
+    }
+
+    /**
+     * Invoked when a new flow node of the run starts or ends a stage, waits for input, stops waiting for input or
+     * failed so that the run is synced
+     *
+     * @param run  the run
+     * @param node the new flow node
+     */
+    protected void stageGraphChanged(Run run, FlowNode node) {
+        stageGraphChanged(run);
+    }
+
+    /**
+     * Returns true if the given node starts a stage
+     *
+     * @param node the flow node
+     * @return true if the node is the start of a stage block
+     */
+    public static boolean isStageStart(FlowNode node) {
+        if (node instanceof StepStartNode) {
+            StepStartNode startNode = (StepStartNode) node;
+            if (startNode.isBody()) {
+                return false;
+            }
+            if ("stage".equals(getFunctionName(startNode.getDescriptor()))) {
+                return true;
+            }
+            LabelAction label = node.getAction(LabelAction.class);
+            return label != null && !(label instanceof ThreadNameAction);
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the given node ends a stage
+     *
+     * @param node the flow node
+     * @return true if the node is the end of a stage block
+     */
+    public static boolean isStageEnd(FlowNode node) {
+        if (node instanceof BlockEndNode) {
+            BlockStartNode startNode = ((BlockEndNode<?>) node).getStartNode();
+            return startNode != null && isStageStart(startNode);
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the given node is an <code>input</code> step waiting for approval
+     *
+     * @param node the flow node
+     * @return true if the node is an input step
+     */
+    public static boolean isInputStep(FlowNode node) {
+        return node instanceof StepAtomNode && "input".equals(getFunctionName(((StepAtomNode) node).getDescriptor()));
+    }
+
+    private static String getFunctionName(StepDescriptor descriptor) {
+        return descriptor != null ? descriptor.getFunctionName() : null;
+    }
+
+    private static Run getRun(FlowExecution execution) {
+        try {
+            Queue.Executable executable = execution.getOwner().getExecutable();
+            if (executable instanceof Run) {
+                return (Run) executable;
+            }
+        } catch (IOException e) {
+            logger.log(FINE, "Could not find the run for flow execution " + execution + ": " + e, e);
+        }
+        return null;
+    }
+
+    private static void stageGraphChanged(Run run) {
+        BuildSyncRunListener listener = BuildSyncRunListener.get();
+        if (listener != null) {
+            listener.onStageGraphChanged(run);
+        }
+    }
+
+    /**
+     * Receives the new flow nodes of a single run; most nodes are neither stages nor input steps so those cheap
+     * checks come first and only the few nodes which change the stages are passed on
+     */
+    private class RunGraphListener implements GraphListener {
+        private final Run run;
+        private volatile boolean waitingForInput;
+
+        RunGraphListener(Run run) {
+            this.run = run;
+        }
+
+        @Override
+        public void onNewHead(FlowNode node) {
+            boolean changed = waitingForInput;
+            waitingForInput = isInputStep(node);
+            if (changed || waitingForInput || isStageStart(node) || isStageEnd(node) || node.getError() != null) {
+                stageGraphChanged(run, node);
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import io.jenkins.x.client.kube.PipelineActivitySpec;
+import io.jenkins.x.client.kube.PipelineActivityStep;
+import io.jenkins.x.client.kube.StageActivityStep;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index of the stage steps of a {@link PipelineActivitySpec} so that each stage of a run is found in constant time
+ * rather than by scanning all of the steps of the spec.
+ * <p>
+ * Stages are matched by the id of the flow node which started them so that a stage always updates the same step.
+ * The index is rebuilt whenever we are given a different spec, such as the copy the API server returns after each
+ * write. The stages we already knew keep their steps across a rebuild by matching the names of the steps, so the
+ * steps may be reordered on the server; only steps of stages we have never seen, such as those of an activity loaded
+ * after a restart, are matched to the stages of the run by their position.
+ */
+public class StageIndex {
+    private final List<StageActivityStep> stages = new ArrayList<>();
+    private final List<String> nodeIds = new ArrayList<>();
+    private final Map<String, StageActivityStep> stagesByNodeId = new HashMap<>();
+    private PipelineActivitySpec spec;
+    private List<PipelineActivityStep> steps;
+    private int stepCount;
+
+    /**
+     * Returns the stage step for the given stage of the run, adding a new step to the spec if there is none
+     *
+     * @param spec    the spec of the activity
+     * @param stage   the stage of the run
+     * @param ordinal the position of the stage in the run
+     * @return the stage step
+     */
+    public synchronized StageActivityStep getOrCreateStage(PipelineActivitySpec spec, StageInfo stage, int ordinal) {
+        if (spec != this.spec || spec.getSteps() != steps || steps.size() != stepCount) {
+            rebuild(spec);
+        }
+        String nodeId = stage.getId();
+        StageActivityStep answer = stagesByNodeId.get(nodeId);
+        if (answer != null) {
+            return answer;
+        }
+        if (ordinal < stages.size() && nodeIds.get(ordinal) == null) {
+            answer = stages.get(ordinal);
+            nodeIds.set(ordinal, nodeId);
+        } else {
+            PipelineActivityStep step = new PipelineActivityStep();
+            step.setKind("stage");
+            answer = new StageActivityStep();
+            step.setStage(answer);
+            steps.add(step);
+            stepCount++;
+            stages.add(answer);
+            nodeIds.add(nodeId);
+        }
+        stagesByNodeId.put(nodeId, answer);
+        return answer;
+    }
+
+    /**
+     * Returns the number of stage steps in the indexed spec
+     */
+    public synchronized int size() {
+        return stages.size();
+    }
+
+    private void rebuild(PipelineActivitySpec spec) {
+        List<PipelineActivityStep> specSteps = spec.getSteps();
+        if (specSteps == null) {
+            specSteps = new ArrayList<>();
+            spec.setSteps(specSteps);
+        }
+        Map<String, Deque<String>> nodeIdsByName = new HashMap<>();
+        for (int i = 0; i < stages.size(); i++) {
+            String nodeId = nodeIds.get(i);
+            if (nodeId != null) {
+                nodeIdsByName.computeIfAbsent(getName(stages.get(i)), name -> new ArrayDeque<>()).add(nodeId);
+            }
+        }
+        this.spec = spec;
+        this.steps = specSteps;
+        this.stepCount = specSteps.size();
+        stages.clear();
+        nodeIds.clear();
+        stagesByNodeId.clear();
+        for (PipelineActivityStep step : specSteps) {
+            StageActivityStep stage = step.getStage();
+            if (stage != null) {
+                Deque<String> ids = nodeIdsByName.get(getName(stage));
+                String nodeId = ids != null ? ids.poll() : null;
+                stages.add(stage);
+                nodeIds.add(nodeId);
+                if (nodeId != null) {
+                    stagesByNodeId.put(nodeId, stage);
+                }
+            }
+        }
+    }
+
+    private static String getName(StageActivityStep stage) {
+        String name = stage.getName();
+        return name != null ? name : "";
+    }
+}
@@ -0,0 +1,66 @@
+package org.jenkinsci.plugins.jx.resources;
+
+/**
+ * The name, status and timing of a single stage of a pipeline run
+ */
+public class StageInfo {
+    private final String id;
+    private String name;
+    private String status = "";
+    private long startTimeMillis;
+    private long durationMillis;
+
+    public StageInfo(String id, String name, long startTimeMillis) {
+        this.id = id;
+        this.name = name;
+        this.startTimeMillis = startTimeMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "StageInfo{" +
+                "id='" + id + '\'' +
+                ", name='" + name + '\'' +
+                ", status='" + status + '\'' +
+                '}';
+    }
+
+    /**
+     * Returns the id of the flow node which started the stage
+     */
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    public void setStartTimeMillis(long startTimeMillis) {
+        this.startTimeMillis = startTimeMillis;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+}
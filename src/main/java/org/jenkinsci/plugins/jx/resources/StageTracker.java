@@ -0,0 +1,228 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import hudson.model.Result;
+import io.jenkins.x.client.kube.Statuses;
+import org.jenkinsci.plugins.workflow.actions.ErrorAction;
+import org.jenkinsci.plugins.workflow.actions.LabelAction;
+import org.jenkinsci.plugins.workflow.actions.TimingAction;
+import org.jenkinsci.plugins.workflow.actions.WarningAction;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.graph.BlockEndNode;
+import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.steps.FlowInterruptedException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Incrementally tracks the stages of a pipeline run.
+ * <p>
+ * Rather than walking the whole flow graph on every sync we remember the last flow node we processed and only visit
+ * the nodes created since then; CPS flow nodes are numbered sequentially so the new nodes are simply the ids between
+ * the last node we processed and the newest current head.
+ * <p>
+ * The statuses and timings follow those of <code>RunExt.create()</code> which we used to call: a stage with an error
+ * failed or was aborted, otherwise the worst {@link WarningAction} inside it decides whether it was unstable, and
+ * stages still open when the run completes take the result of the run.
+ */
+public class StageTracker {
+    private static final Logger logger = Logger.getLogger(StageTracker.class.getName());
+
+    private final List<StageInfo> stages = new ArrayList<>();
+    private final Map<String, StageInfo> openStages = new HashMap<>();
+    private final Map<String, String> inputNodes = new HashMap<>();
+    private final Map<String, Result> warnings = new HashMap<>();
+    private Set<String> runningNodeIds = new HashSet<>();
+    private int lastNodeId;
+
+    /**
+     * Processes any flow nodes created since the last update and returns the current stages of the run
+     *
+     * @param run the pipeline run
+     * @return the stages of the run in the order they started
+     */
+    public synchronized List<StageInfo> update(WorkflowRun run) {
+        FlowExecution execution = run.getExecution();
+        if (execution == null) {
+            return Collections.unmodifiableList(stages);
+        }
+        List<FlowNode> heads = execution.getCurrentHeads();
+        // steps which were still running last time may have added a warning since
+        for (String id : runningNodeIds) {
+            try {
+                FlowNode node = execution.getNode(id);
+                if (node != null) {
+                    addWarning(node, node.getPersistentAction(WarningAction.class));
+                }
+            } catch (IOException e) {
+                logger.log(FINE, "Could not load flow node " + id + " of " + run + ": " + e, e);
+            }
+        }
+        Set<String> headIds = new HashSet<>();
+        int headId = lastNodeId;
+        for (FlowNode head : heads) {
+            headId = Math.max(headId, parseNodeId(head));
+            headIds.add(head.getId());
+        }
+        for (int id = lastNodeId + 1; id <= headId; id++) {
+            try {
+                FlowNode node = execution.getNode(Integer.toString(id));
+                if (node != null) {
+                    onNode(node);
+                }
+            } catch (IOException e) {
+                logger.log(WARNING, "Could not load flow node " + id + " of " + run + ": " + e, e);
+            }
+        }
+        lastNodeId = headId;
+        runningNodeIds = headIds;
+
+        boolean building = run.isBuilding();
+        for (StageInfo stage : openStages.values()) {
+            if (stage.getName() == null) {
+                // the stage step adds its label just after its node is created
+                stage.setName(getLabel(execution, stage.getId()));
+            }
+            if (!building) {
+                stage.setStatus(getStatus(run.getResult()));
+                long endTime = run.getStartTimeInMillis() + run.getDuration();
+                if (stage.getStartTimeMillis() > 0 && endTime > stage.getStartTimeMillis()) {
+                    stage.setDurationMillis(endTime - stage.getStartTimeMillis());
+                }
+            } else if (isWaitingForInput(stage, heads)) {
+                stage.setStatus(Statuses.WAITING_FOR_APPROVAL);
+            } else {
+                stage.setStatus(Statuses.PENDING);
+            }
+        }
+        return Collections.unmodifiableList(stages);
+    }
+
+    protected void onNode(FlowNode node) {
+        addWarning(node, node.getPersistentAction(WarningAction.class));
+        if (StageGraphListener.isStageStart(node)) {
+            StageInfo stage = new StageInfo(node.getId(), getLabel(node), TimingAction.getStartTime(node));
+            stage.setStatus(Statuses.PENDING);
+            stages.add(stage);
+            openStages.put(stage.getId(), stage);
+        } else if (node instanceof BlockEndNode) {
+            BlockStartNode startNode = ((BlockEndNode<?>) node).getStartNode();
+            if (startNode != null) {
+                // blocks such as catchError add their warning to their start node once their body completes
+                WarningAction warning = startNode.getPersistentAction(WarningAction.class);
+                mergeWarning(startNode.getId(), warning);
+                addWarning(startNode, warning);
+            }
+            StageInfo stage = startNode != null ? openStages.remove(startNode.getId()) : null;
+            if (stage != null) {
+                if (stage.getName() == null) {
+                    stage.setName(getLabel(startNode));
+                }
+                stage.setStatus(getCompletedStatus(node, warnings.remove(stage.getId())));
+                long endTime = TimingAction.getStartTime(node);
+                if (endTime > 0 && stage.getStartTimeMillis() > 0) {
+                    stage.setDurationMillis(endTime - stage.getStartTimeMillis());
+                }
+                inputNodes.remove(stage.getId());
+            }
+        } else if (StageGraphListener.isInputStep(node)) {
+            for (BlockStartNode block : node.getEnclosingBlocks()) {
+                if (openStages.containsKey(block.getId())) {
+                    inputNodes.put(block.getId(), node.getId());
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the warning of the node to each of the open stages which enclose it
+     */
+    private void addWarning(FlowNode node, WarningAction warning) {
+        if (warning == null) {
+            return;
+        }
+        for (BlockStartNode block : node.getEnclosingBlocks()) {
+            mergeWarning(block.getId(), warning);
+        }
+    }
+
+    private void mergeWarning(String stageId, WarningAction warning) {
+        if (warning != null && openStages.containsKey(stageId)) {
+            warnings.merge(stageId, warning.getResult(), Result::combine);
+        }
+    }
+
+    private boolean isWaitingForInput(StageInfo stage, List<FlowNode> heads) {
+        String inputNodeId = inputNodes.get(stage.getId());
+        if (inputNodeId != null) {
+            for (FlowNode head : heads) {
+                if (inputNodeId.equals(head.getId())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String getLabel(FlowExecution execution, String nodeId) {
+        try {
+            FlowNode node = execution.getNode(nodeId);
+            return node != null ? getLabel(node) : null;
+        } catch (IOException e) {
+            logger.log(FINE, "Could not load flow node " + nodeId + ": " + e, e);
+            return null;
+        }
+    }
+
+    private static String getLabel(FlowNode node) {
+        LabelAction label = node.getAction(LabelAction.class);
+        return label != null ? label.getDisplayName() : null;
+    }
+
+    private static String getCompletedStatus(FlowNode endNode, Result warning) {
+        ErrorAction error = endNode.getError();
+        if (error != null) {
+            Throwable cause = error.getError();
+            return cause instanceof FlowInterruptedException ? getStatus(((FlowInterruptedException) cause).getResult()) : Statuses.FAILED;
+        }
+        return warning != null ? getStatus(warning) : Statuses.SUCCEEDED;
+    }
+
+    private static String getStatus(Result result) {
+        if (Result.UNSTABLE.equals(result)) {
+            return Statuses.UNSTABLE;
+        }
+        if (Result.FAILURE.equals(result)) {
+            return Statuses.FAILED;
+        }
+        if (Result.ABORTED.equals(result)) {
+            return Statuses.ABORTED;
+        }
+        if (Result.NOT_BUILT.equals(result)) {
+            return Statuses.NOT_EXECUTED;
+        }
+        return Statuses.SUCCEEDED;
+    }
+
+    private static int parseNodeId(FlowNode node) {
+        try {
+            return Integer.parseInt(node.getId());
+        } catch (NumberFormatException e) {
+            logger.log(FINE, "Ignoring flow node with a non numeric id " + node.getId());
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.Run;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.plugins.git.util.BuildData;
+import hudson.scm.SCM;
+import io.jenkins.x.client.kube.KubernetesNames;
+import io.jenkins.x.client.util.Strings;
+import org.jenkinsci.plugins.workflow.cps.CpsScmFlowDefinition;
+import org.jenkinsci.plugins.workflow.flow.FlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.apache.commons.lang.StringUtils.isBlank;
+
+/**
+ * The state we keep for each run we are syncing.
+ * <p>
+ * Most of what goes into a PipelineActivity, such as the git repository, branch, build number, author and URLs,
+ * never changes during a run so we work it out once and reuse it on every sync. The only things which can change are
+ * the git revision, branch and URL once the SCM checkout completes so we keep looking for just those until the run
+ * has a {@link BuildData} or it completes, and only work out the names, labels and URLs again if one of them changed.
+ */
+public class SyncContext {
+    private final StageTracker stageTracker = new StageTracker();
+    private final StageIndex stageIndex = new StageIndex();
+    private final PollBackoff pollBackoff;
+
+    private volatile boolean resumed;
+    private long deferredDelay;
+    private final AtomicLong stageChangedAt = new AtomicLong();
+    private volatile boolean completed;
+    private final Set<String> baselinedStages = new HashSet<>();
+    private final Map<String, Long> slowStages = new HashMap<>();
+    private long queueTimeMs = -1;
+    private boolean resolved;
+    private boolean initialized;
+    private String envRepoOwner;
+    private String envRepoName;
+    private String envBranchName;
+    private String resolvedGitUrl;
+    private String resolvedJenkinsURL;
+    private String name;
+    private String parentFullName;
+    private String buildNumberText;
+    private String repoOwner;
+    private String repoName;
+    private String branchName;
+    private String gitUrl;
+    private String sha;
+    private String author;
+    private String lastCommitMessage;
+    private String buildUrl;
+    private String buildLogsUrl;
+    private Map<String, String> labels = Collections.emptyMap();
+
+    public SyncContext(PollBackoff pollBackoff) {
+        this.pollBackoff = pollBackoff;
+    }
+
+    /**
+     * Works out the details of the run unless we have already found them all
+     *
+     * @param run        the run
+     * @param jenkinsURL the external URL of Jenkins used to create the build URLs or blank if there is none
+     */
+    public void resolve(Run run, String jenkinsURL) {
+        if (resolved) {
+            return;
+        }
+        if (!initialized) {
+            // when using this plugin inside the jenkinsfile runner these values may not be valid so lets look for the magic env vars first
+            envRepoOwner = EnvironmentVariableExpander.getenv("REPO_OWNER");
+            envRepoName = EnvironmentVariableExpander.getenv("REPO_NAME");
+            envBranchName = EnvironmentVariableExpander.getenv("BRANCH_NAME");
+            buildNumberText = EnvironmentVariableExpander.getenv("JX_BUILD_NUMBER");
+            if (Strings.empty(buildNumberText)) {
+                buildNumberText = EnvironmentVariableExpander.getenv("BUILD_NUMBER");
+            }
+            if (Strings.empty(buildNumberText)) {
+                buildNumberText = EnvironmentVariableExpander.getenv("BUILD_ID");
+            }
+            if (Strings.empty(buildNumberText)) {
+                buildNumberText = "" + run.getNumber();
+            }
+            resolveCauses(run);
+            initialized = true;
+        }
+
+        // only the sha, branch and git URL can change until the checkout has completed
+        String newSha = "";
+        String newBranchName = envBranchName;
+        BuildData buildData = run.getAction(BuildData.class);
+        if (buildData != null) {
+            Revision rev = buildData.getLastBuiltRevision();
+            if (rev != null) {
+                newSha = rev.getSha1String();
+                Collection<Branch> branches = rev.getBranches();
+                if (branches.size() == 1) {
+                    for (Branch branch : branches) {
+                        String branchExpression = branch.getName();
+                        if (Strings.notEmpty(branchExpression)) {
+                            String[] paths = branchExpression.split("/");
+                            if (paths.length > 0) {
+                                newBranchName = paths[paths.length - 1];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        // is there any other way to find the git owner/repo/branch?
+        if (Strings.empty(newBranchName)) {
+            newBranchName = "master";
+        }
+        if (gitUrl == null) {
+            gitUrl = findGitURL(run);
+        }
+
+        // once the checkout has completed nothing else can change
+        resolved = buildData != null || !run.isBuilding();
+
+        if (name != null && Objects.equals(sha, newSha) && Objects.equals(branchName, newBranchName)
+                && Objects.equals(resolvedGitUrl, gitUrl) && Objects.equals(resolvedJenkinsURL, jenkinsURL)) {
+            return;
+        }
+        sha = newSha;
+        branchName = newBranchName;
+        resolvedGitUrl = gitUrl;
+        resolvedJenkinsURL = jenkinsURL;
+
+        repoOwner = envRepoOwner;
+        repoName = envRepoName;
+        if (Strings.empty(repoOwner) || Strings.empty(repoName)) {
+            if (Strings.notEmpty(gitUrl)) {
+                GitURLInfo info = GitURLParser.parse(gitUrl);
+                if (info != null) {
+                    repoOwner = info.getOwner();
+                    repoName = info.getRepository();
+
+                }
+            }
+        }
+        if (Strings.empty(repoOwner) || Strings.empty(repoName)) {
+            // if we still can't find the owner/repo lets use the folder structure
+            String fullName = run.getParent().getFullName();
+            String[] paths = fullName.split("/");
+            if (paths.length == 2) {
+                repoOwner = paths[0];
+                repoName = paths[1];
+            }
+        }
+
+        parentFullName = "";
+        if (Strings.notEmpty(repoOwner) && Strings.notEmpty(repoName) && Strings.notEmpty(branchName)) {
+            parentFullName = repoOwner + "/" + repoName + "/" + branchName;
+        }
+        if (Strings.empty(parentFullName)) {
+            parentFullName = run.getParent().getFullName();
+        }
+        String runName = parentFullName + "-" + buildNumberText;
+        name = KubernetesNames.convertToKubernetesName(runName, false);
+
+        Map<String, String> newLabels = new HashMap<>();
+        if (Strings.notEmpty(repoOwner)) {
+            newLabels.put("owner", KubernetesNames.convertToKubernetesName(repoOwner, false));
+        }
+        if (Strings.notEmpty(repoName)) {
+            newLabels.put("repository", KubernetesNames.convertToKubernetesName(repoName, false));
+        }
+        if (Strings.notEmpty(branchName)) {
+            newLabels.put("branch", KubernetesNames.convertToKubernetesName(branchName, false));
+        }
+        if (Strings.notEmpty(buildNumberText)) {
+            newLabels.put("build", buildNumberText);
+        }
+        labels = Collections.unmodifiableMap(newLabels);
+
+        buildUrl = null;
+        buildLogsUrl = null;
+        if (!isBlank(jenkinsURL)) {
+            buildUrl = BuildSyncRunListener.createBuildUrl(jenkinsURL, parentFullName, buildNumberText);
+            buildLogsUrl = BuildSyncRunListener.createBuildLogsUrl(jenkinsURL, parentFullName, buildNumberText);
+        }
+    }
+
+    /**
+     * Lets find the user who triggered the run
+     */
+    private void resolveCauses(Run run) {
+        author = "";
+        lastCommitMessage = "";
+        CauseAction causeAction = run.getAction(CauseAction.class);
+        if (causeAction != null) {
+            List<Cause> causes = causeAction.getCauses();
+            for (Cause cause : causes) {
+                if (cause instanceof Cause.UserIdCause) {
+                    Cause.UserIdCause userIdCause = (Cause.UserIdCause) cause;
+                    if (Strings.empty(author)) {
+                        author = userIdCause.getUserId();
+                    }
+                } else if (cause instanceof Cause.RemoteCause) {
+                    Cause.RemoteCause remoteCause = (Cause.RemoteCause) cause;
+                    if (Strings.empty(lastCommitMessage)) {
+                        lastCommitMessage = remoteCause.getShortDescription();
+                    }
+                } else if (cause instanceof Cause.UpstreamCause) {
+                    Cause.UpstreamCause upstreamCause = (Cause.UpstreamCause) cause;
+                    if (Strings.empty(lastCommitMessage)) {
+                        lastCommitMessage = upstreamCause.getShortDescription();
+                    }
+                }
+            }
+        }
+    }
+
+    private static String findGitURL(Run run) {
+        if (run instanceof WorkflowRun) {
+            WorkflowRun workflowRun = (WorkflowRun) run;
+            WorkflowJob job = workflowRun.getParent();
+            if (job != null) {
+                FlowDefinition definition = job.getDefinition();
+                if (definition instanceof CpsScmFlowDefinition) {
+                    CpsScmFlowDefinition cpsScmFlowDefinition = (CpsScmFlowDefinition) definition;
+                    SCM scm = cpsScmFlowDefinition.getScm();
+                    String url = getGitUrl(scm);
+                    if (!isBlank(url)) {
+                        return url;
+                    }
+                }
+                Collection<? extends SCM> scms = job.getSCMs();
+                if (scms != null) {
+                    for (SCM scm : scms) {
+                        String url = getGitUrl(scm);
+                        if (!isBlank(url)) {
+                            return url;
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String getGitUrl(SCM scm) {
+        if (scm instanceof GitSCM) {
+            GitSCM gitSCM = (GitSCM) scm;
+            List<UserRemoteConfig> userRemoteConfigs = gitSCM.getUserRemoteConfigs();
+            if (userRemoteConfigs != null) {
+                for (UserRemoteConfig userRemoteConfig : userRemoteConfigs) {
+                    if (userRemoteConfig != null) {
+                        String url = userRemoteConfig.getUrl();
+                        if (!isBlank(url)) {
+                            return url;
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    public StageTracker getStageTracker() {
+        return stageTracker;
+    }
+
+    public StageIndex getStageIndex() {
+        return stageIndex;
+    }
+
+    public PollBackoff getPollBackoff() {
+        return pollBackoff;
+    }
+
+    /**
+     * Returns true if the run was resumed after a restart and has not been synced since
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public void setResumed(boolean resumed) {
+        this.resumed = resumed;
+    }
+
+    /**
+     * Defers the next sync of the run, such as when the rate limit was reached before we could write its activity
+     *
+     * @param deferredDelay the number of milliseconds to wait before trying again
+     */
+    public void setDeferredDelay(long deferredDelay) {
+        this.deferredDelay = deferredDelay;
+    }
+
+    /**
+     * Returns the delay before the next sync if it was deferred or zero, resetting it for the following sync
+     */
+    public long takeDeferredDelay() {
+        long answer = deferredDelay;
+        deferredDelay = 0;
+        return answer;
+    }
+
+    /**
+     * Records when a stage changed unless an earlier change has not been written yet
+     */
+    public void markStageChanged(long timeMillis) {
+        stageChangedAt.compareAndSet(0, timeMillis);
+    }
+
+    /**
+     * Returns when the earliest stage change which has not been written happened or zero, resetting it once the
+     * activity has been written
+     */
+    public long takeStageChangedAt() {
+        return stageChangedAt.getAndSet(0);
+    }
+
+    /**
+     * Marks that the run has completed so that the next sync records its metrics
+     */
+    public void setCompleted(boolean completed) {
+        this.completed = completed;
+    }
+
+    /**
+     * Returns true if the run has completed since this was last called
+     */
+    public synchronized boolean takeCompleted() {
+        boolean answer = completed;
+        completed = false;
+        return answer;
+    }
+
+    /**
+     * Marks that the duration of the completed stage has been added to its baseline
+     *
+     * @return true if it had not been marked before
+     */
+    public synchronized boolean markStageBaselined(String stageId) {
+        return baselinedStages.add(stageId);
+    }
+
+    /**
+     * Records that the stage took longer than the 95th percentile of its baseline
+     */
+    public synchronized void setSlowStage(String stageId, long p95DurationMillis) {
+        slowStages.put(stageId, p95DurationMillis);
+    }
+
+    /**
+     * Returns the 95th percentile duration of the stage's baseline if the stage was slower than it, otherwise null
+     */
+    public synchronized Long getSlowStageP95(String stageId) {
+        return slowStages.isEmpty() ? null : slowStages.get(stageId);
+    }
+
+    /**
+     * Returns how long the run waited in the queue or -1 if we don't know
+     */
+    public long getQueueTimeMs() {
+        return queueTimeMs;
+    }
+
+    public void setQueueTimeMs(long queueTimeMs) {
+        this.queueTimeMs = queueTimeMs;
+    }
+
+    public boolean isResolved() {
+        return resolved;
+    }
+
+    /**
+     * Returns the name of the PipelineActivity resource of the run
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getParentFullName() {
+        return parentFullName;
+    }
+
+    public String getBuildNumberText() {
+        return buildNumberText;
+    }
+
+    public String getRepoOwner() {
+        return repoOwner;
+    }
+
+    public String getRepoName() {
+        return repoName;
+    }
+
+    public String getBranchName() {
+        return branchName;
+    }
+
+    public String getGitUrl() {
+        return gitUrl;
+    }
+
+    public String getSha() {
+        return sha;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public String getLastCommitMessage() {
+        return lastCommitMessage;
+    }
+
+    public String getBuildUrl() {
+        return buildUrl;
+    }
+
+    public String getBuildLogsUrl() {
+        return buildLogsUrl;
+    }
+
+    public Map<String, String> getLabels() {
+        return labels;
+    }
+}
@@ -0,0 +1,200 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Counts what syncing PipelineActivity resources costs: the calls we make to the API server, how many syncs had
+ * nothing to write, how long syncs take and how long it takes for a stage change to reach the API server.
+ * <p>
+ * The metrics are exposed as the <code>io.jenkins.x:type=SyncMetrics</code> MXBean.
+ */
+public class SyncMetrics implements SyncMetricsMXBean {
+    private static final Logger logger = Logger.getLogger(SyncMetrics.class.getName());
+    public static final String OBJECT_NAME = "io.jenkins.x:type=SyncMetrics";
+
+    public enum Call {
+        GET, CREATE, PATCH
+    }
+
+    private final BuildSyncRunListener listener;
+    private final LongAdder[] calls = new LongAdder[Call.values().length];
+    private final LongAdder rejectedCalls = new LongAdder();
+    private final Map<Integer, LongAdder> errors = new ConcurrentHashMap<>();
+    private final LongAdder skippedWrites = new LongAdder();
+    private final LongAdder deferredWrites = new LongAdder();
+    private final LongAdder journaledWrites = new LongAdder();
+    private final Histogram syncDuration = new Histogram(Histogram.LATENCY_MS_BOUNDS);
+    private final Histogram stageToWrite = new Histogram(Histogram.LATENCY_MS_BOUNDS);
+
+    public SyncMetrics(BuildSyncRunListener listener) {
+        this.listener = listener;
+        for (int i = 0; i < calls.length; i++) {
+            calls[i] = new LongAdder();
+        }
+    }
+
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            logger.log(WARNING, "Could not register " + OBJECT_NAME + ": " + e, e);
+        }
+    }
+
+    public void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            logger.log(WARNING, "Could not unregister " + OBJECT_NAME + ": " + e, e);
+        }
+    }
+
+    public void onCall(Call call) {
+        calls[call.ordinal()].increment();
+    }
+
+    public void onRejectedCall() {
+        rejectedCalls.increment();
+    }
+
+    public void onError(int statusCode) {
+        errors.computeIfAbsent(Math.max(0, statusCode), code -> new LongAdder()).increment();
+    }
+
+    public void onSkippedWrite() {
+        skippedWrites.increment();
+    }
+
+    public void onDeferredWrite() {
+        deferredWrites.increment();
+    }
+
+    public void onJournaledWrite() {
+        journaledWrites.increment();
+    }
+
+    public void onSync(long durationMs) {
+        syncDuration.observe(durationMs);
+    }
+
+    public void onStageWritten(long latencyMs) {
+        stageToWrite.observe(latencyMs);
+    }
+
+    @Override
+    public long getGetCalls() {
+        return calls[Call.GET.ordinal()].sum();
+    }
+
+    @Override
+    public long getCreateCalls() {
+        return calls[Call.CREATE.ordinal()].sum();
+    }
+
+    @Override
+    public long getPatchCalls() {
+        return calls[Call.PATCH.ordinal()].sum();
+    }
+
+    @Override
+    public long getRejectedCalls() {
+        return rejectedCalls.sum();
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> answer = new TreeMap<>();
+        for (Map.Entry<Integer, LongAdder> entry : errors.entrySet()) {
+            answer.put(entry.getKey().toString(), entry.getValue().sum());
+        }
+        return answer;
+    }
+
+    @Override
+    public long getSkippedWrites() {
+        return skippedWrites.sum();
+    }
+
+    @Override
+    public long getDeferredWrites() {
+        return deferredWrites.sum();
+    }
+
+    @Override
+    public long getJournaledWrites() {
+        return journaledWrites.sum();
+    }
+
+    @Override
+    public long getSyncCount() {
+        return syncDuration.getCount();
+    }
+
+    @Override
+    public double getSyncDurationMeanMs() {
+        return syncDuration.getMean();
+    }
+
+    @Override
+    public double getSyncDurationP99Ms() {
+        return syncDuration.getQuantile(0.99);
+    }
+
+    @Override
+    public double getSyncDurationMaxMs() {
+        return syncDuration.getMax();
+    }
+
+    @Override
+    public double getStageToWriteP50Ms() {
+        return stageToWrite.getQuantile(0.5);
+    }
+
+    @Override
+    public double getStageToWriteP99Ms() {
+        return stageToWrite.getQuantile(0.99);
+    }
+
+    @Override
+    public double getStageToWriteMaxMs() {
+        return stageToWrite.getMax();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return listener.getQueueDepth();
+    }
+
+    @Override
+    public int getActiveRuns() {
+        return listener.getActiveRunCount();
+    }
+
+    @Override
+    public int getJournaledActivities() {
+        return listener.getJournaledActivityCount();
+    }
+
+    @Override
+    public String getCircuitBreakerState() {
+        return listener.getCircuitBreaker().getState().name();
+    }
+}
@@ -0,0 +1,59 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link SyncMetrics}
+ */
+public interface SyncMetricsMXBean {
+
+    long getGetCalls();
+
+    long getCreateCalls();
+
+    long getPatchCalls();
+
+    /**
+     * Returns the number of calls not made because the circuit breaker was open
+     */
+    long getRejectedCalls();
+
+    /**
+     * Returns the number of failed API calls keyed by HTTP status code, where 0 means no response was received
+     */
+    Map<String, Long> getErrorCounts();
+
+    /**
+     * Returns the number of syncs which found no change to write
+     */
+    long getSkippedWrites();
+
+    long getDeferredWrites();
+
+    long getJournaledWrites();
+
+    long getSyncCount();
+
+    double getSyncDurationMeanMs();
+
+    double getSyncDurationP99Ms();
+
+    double getSyncDurationMaxMs();
+
+    /**
+     * Returns the median time from a stage starting or ending to its activity being written
+     */
+    double getStageToWriteP50Ms();
+
+    double getStageToWriteP99Ms();
+
+    double getStageToWriteMaxMs();
+
+    int getQueueDepth();
+
+    int getActiveRuns();
+
+    int getJournaledActivities();
+
+    String getCircuitBreakerState();
+}
@@ -0,0 +1,83 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket which limits how fast we call the API server with two lanes of writes.
+ * <p>
+ * Priority writes, such as creating an activity or recording that a build has completed, may use every token in
+ * the bucket while normal writes, such as intermediate stage updates, leave a reserve of tokens for priority writes.
+ * Neither lane waits for a token; instead the caller is told how long until a token is expected so that it can try
+ * again later without blocking its thread, by which time any further changes have been coalesced into one write.
+ */
+public class WriteRateLimiter {
+    private final LongSupplier nanoClock;
+    private double permitsPerSecond;
+    private double burst;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * @param permitsPerSecond the sustained number of calls per second or zero for no limit
+     * @param burst            the maximum number of calls which can be made at once
+     */
+    public WriteRateLimiter(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, System::nanoTime);
+    }
+
+    WriteRateLimiter(double permitsPerSecond, int burst, LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        this.lastRefillNanos = nanoClock.getAsLong();
+        setRate(permitsPerSecond, burst);
+        this.tokens = this.burst;
+    }
+
+    public synchronized void setRate(double permitsPerSecond, int burst) {
+        refill();
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = Math.max(1, burst);
+        this.tokens = Math.min(tokens, this.burst);
+    }
+
+    /**
+     * Takes a token for a call in the given lane if one is available
+     *
+     * @param priority whether the call is in the priority lane
+     * @return zero if a token was taken or else the number of milliseconds until a token is expected for the lane
+     */
+    public synchronized long tryAcquire(boolean priority) {
+        if (permitsPerSecond <= 0) {
+            return 0;
+        }
+        refill();
+        double floor = priority ? 0 : getPriorityReserve();
+        if (tokens - 1 >= floor) {
+            tokens -= 1;
+            return 0;
+        }
+        double seconds = (floor + 1 - tokens) / permitsPerSecond;
+        return Math.max(1, (long) Math.ceil(seconds * 1000));
+    }
+
+    /**
+     * Returns the number of tokens which normal writes leave in the bucket for priority writes
+     */
+    protected double getPriorityReserve() {
+        return burst > 1 ? Math.max(1, Math.floor(burst / 5)) : 0;
+    }
+
+    synchronized double getTokens() {
+        refill();
+        return tokens;
+    }
+
+    private void refill() {
+        long now = nanoClock.getAsLong();
+        long elapsed = now - lastRefillNanos;
+        lastRefillNanos = now;
+        if (elapsed > 0 && permitsPerSecond > 0) {
+            tokens = Math.min(burst, tokens + elapsed * permitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import hudson.model.queue.QueueTaskFuture;
+import io.fabric8.kubernetes.client.server.mock.KubernetesMockServer;
+import io.fabric8.mockwebserver.Context;
+import io.jenkins.x.client.kube.KubernetesNames;
+import okhttp3.mockwebserver.MockWebServer;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Runs many pipelines at once against a mock API server and reports how much load syncing their PipelineActivity
+ * resources puts on the API server.
+ * <p>
+ * Run with <code>mvn -Pscale-tests verify</code>; use <code>-Djx.scale.builds=N</code> to change the number of
+ * concurrent builds.
+ */
+public class SyncScaleIT {
+    private static final String NAMESPACE = "jx";
+    private static final int BUILDS = Integer.getInteger("jx.scale.builds", 1000);
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private PipelineActivityApiDispatcher dispatcher;
+    private KubernetesMockServer server;
+
+    @Before
+    public void setUp() {
+        dispatcher = new PipelineActivityApiDispatcher();
+        server = new KubernetesMockServer(new Context(), new MockWebServer(), new HashMap<>(), dispatcher, false);
+        server.init();
+
+        KubernetesUtils.shutdownKubernetesClient();
+        GlobalPluginConfiguration config = GlobalPluginConfiguration.get();
+        config.setServer(server.url("/"));
+        config.setNamespace(NAMESPACE);
+    }
+
+    @After
+    public void tearDown() {
+        KubernetesUtils.shutdownKubernetesClient();
+        server.destroy();
+    }
+
+    @Test
+    public void testBurstOfShortBuilds() throws Exception {
+        runScenario("burst", BUILDS, 5);
+    }
+
+    @Test
+    public void testLongPipelines() throws Exception {
+        runScenario("long", Math.max(1, BUILDS / 10), 100);
+    }
+
+    private void runScenario(String scenario, int builds, int stages) throws Exception {
+        List<WorkflowJob> jobs = new ArrayList<>();
+        for (int i = 0; i < builds; i++) {
+            WorkflowJob job = j.createProject(WorkflowJob.class, scenario + "-" + i);
+            job.setDefinition(new CpsFlowDefinition(
+                    "for (int i = 0; i < " + stages + "; i++) { stage(\"Stage ${i}\") { echo \"stage ${i}\" } }", true));
+            jobs.add(job);
+        }
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        dispatcher.reset();
+
+        List<QueueTaskFuture<WorkflowRun>> futures = new ArrayList<>();
+        for (WorkflowJob job : jobs) {
+            futures.add(job.scheduleBuild2(0));
+        }
+        List<WorkflowRun> runs = new ArrayList<>();
+        for (QueueTaskFuture<WorkflowRun> future : futures) {
+            runs.add(j.assertBuildStatusSuccess(future));
+        }
+
+        long deadline = System.currentTimeMillis() + 120000;
+        while (dispatcher.getCompletedCount() < builds && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals("completed activities", builds, dispatcher.getCompletedCount());
+
+        List<Long> latencies = new ArrayList<>();
+        for (WorkflowRun run : runs) {
+            String name = KubernetesNames.convertToKubernetesName(run.getParent().getFullName() + "-" + run.getNumber(), false);
+            Long completedAt = dispatcher.getCompletedAt(name);
+            assertNotNull("no completed activity " + name, completedAt);
+            latencies.add(Math.max(0, completedAt - (run.getStartTimeInMillis() + run.getDuration())));
+        }
+        Collections.sort(latencies);
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+
+        System.out.println(String.format("%s: builds=%d stages=%d requests/build=%.1f bytesWritten/build=%.0f p50=%dms p99=%dms peakHeap=%dMB",
+                scenario, builds, stages,
+                (double) dispatcher.getRequests() / builds,
+                (double) dispatcher.getBytesWritten() / builds,
+                percentile(latencies, 0.50), percentile(latencies, 0.99),
+                peakHeap / (1024 * 1024)));
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+}
@@ -0,0 +1,80 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.jenkins.x.client.kube.PipelineActivity;
+import io.jenkins.x.client.kube.PipelineActivitySpec;
+import io.jenkins.x.client.kube.Statuses;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ActivityOutboxTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPendingStatesSurviveReload() throws Exception {
+        File file = new File(folder.getRoot(), "jx-resources/activity-outbox.jsonl");
+        ActivityOutbox outbox = new ActivityOutbox(file);
+        outbox.load();
+        long first = outbox.append("a-1", createActivity("a-1", Statuses.RUNNING));
+        outbox.append("b-1", createActivity("b-1", Statuses.RUNNING));
+        long latest = outbox.append("a-1", createActivity("a-1", Statuses.SUCCEEDED), true);
+
+        assertFalse("a newer state is still pending", outbox.acknowledge("a-1", first));
+        assertTrue(outbox.acknowledge("b-1", outbox.getPending().get(0).getSeq()));
+
+        ActivityOutbox reloaded = new ActivityOutbox(file);
+        reloaded.load();
+        assertEquals(1, reloaded.size());
+        ActivityOutbox.Entry entry = reloaded.getPending().get(0);
+        assertEquals("a-1", entry.getName());
+        assertEquals(latest, entry.getSeq());
+        assertEquals(Statuses.SUCCEEDED, entry.getJson().path("spec").path("status").asText());
+        assertTrue(entry.isFromServerCopy());
+    }
+
+    @Test
+    public void testCompactsOnceEverythingIsAcknowledged() throws Exception {
+        File file = new File(folder.getRoot(), "activity-outbox.jsonl");
+        ActivityOutbox outbox = new ActivityOutbox(file);
+        for (int i = 0; i < 100; i++) {
+            outbox.append("a-" + i, createActivity("a-" + i, Statuses.RUNNING));
+        }
+        for (ActivityOutbox.Entry entry : outbox.getPending()) {
+            assertTrue(outbox.acknowledge(entry.getName(), entry.getSeq()));
+        }
+        assertEquals(0, outbox.size());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testIgnoresPartiallyWrittenLine() throws Exception {
+        File file = new File(folder.getRoot(), "activity-outbox.jsonl");
+        ActivityOutbox outbox = new ActivityOutbox(file);
+        outbox.append("a-1", createActivity("a-1", Statuses.RUNNING));
+        Files.write(file.toPath(), "{\"seq\":2,\"name\":\"a-".getBytes("UTF-8"), StandardOpenOption.APPEND);
+
+        ActivityOutbox reloaded = new ActivityOutbox(file);
+        reloaded.load();
+        assertEquals(1, reloaded.size());
+        assertTrue(reloaded.contains("a-1"));
+    }
+
+    private static PipelineActivity createActivity(String name, String status) {
+        PipelineActivity activity = new PipelineActivity();
+        activity.setMetadata(new ObjectMetaBuilder().withName(name).build());
+        PipelineActivitySpec spec = new PipelineActivitySpec();
+        spec.setStatus(status);
+        activity.setSpec(spec);
+        return activity;
+    }
+}
@@ -0,0 +1,161 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.fabric8.kubernetes.api.model.StatusBuilder;
+import io.fabric8.kubernetes.client.utils.Serialization;
+import io.fabric8.kubernetes.client.server.mock.KubernetesServer;
+import io.jenkins.x.client.kube.PipelineActivity;
+import io.jenkins.x.client.kube.PipelineActivitySpec;
+import io.jenkins.x.client.kube.PipelineActivityStep;
+import io.jenkins.x.client.kube.PromoteActivityStep;
+import io.jenkins.x.client.kube.StageActivityStep;
+import io.jenkins.x.client.kube.Statuses;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays journaled activities against a mock API server
+ */
+public class ActivityReplayTest {
+    private static final String NAMESPACE = "test";
+    private static final String NAME = "jenkins-x-demo-master-1";
+    private static final String PATH = "/apis/jenkins.io/v1/namespaces/" + NAMESPACE + "/pipelineactivities";
+
+    private final ObjectMapper mapper = Serialization.jsonMapper();
+
+    @Rule
+    public KubernetesServer server = new KubernetesServer();
+
+    @Test
+    public void testReplaysAgainstTheLatestServerCopyOnConflict() throws Exception {
+        PipelineActivity first = createActivity("5", Statuses.RUNNING);
+        PipelineActivity modified = createActivity("6", Statuses.RUNNING);
+        modified.getSpec().setAuthor("someone else");
+        server.expect().get().withPath(PATH + "/" + NAME).andReturn(200, first).once();
+        server.expect().patch().withPath(PATH + "/" + NAME)
+                .andReturn(409, new StatusBuilder().withCode(409).withReason("Conflict").build()).once();
+        server.expect().get().withPath(PATH + "/" + NAME).andReturn(200, modified).once();
+        server.expect().patch().withPath(PATH + "/" + NAME).andReturn(200, createActivity("7", Statuses.SUCCEEDED)).once();
+
+        PipelineActivity answer = new BuildSyncRunListener().replayActivity(server.getClient(), NAMESPACE, createEntry(Statuses.SUCCEEDED));
+        assertEquals("7", answer.getMetadata().getResourceVersion());
+
+        assertEquals("GET", server.getMockServer().takeRequest().getMethod());
+        JsonNode patch = takePatch();
+        assertEquals("5", patch.path("metadata").path("resourceVersion").asText());
+        assertEquals("GET", server.getMockServer().takeRequest().getMethod());
+        patch = takePatch();
+        assertEquals("the patch is guarded by the version we diffed against",
+                "6", patch.path("metadata").path("resourceVersion").asText());
+        assertEquals(Statuses.SUCCEEDED, patch.path("spec").path("status").asText());
+        assertFalse("fields changed by others are left alone", patch.path("spec").has("author"));
+        assertFalse("unchanged labels are not sent", patch.path("metadata").has("labels"));
+    }
+
+    @Test
+    public void testCreatesTheActivityIfItNoLongerExists() throws Exception {
+        server.expect().get().withPath(PATH + "/" + NAME).andReturn(404, new StatusBuilder().withCode(404).build()).once();
+        server.expect().post().withPath(PATH).andReturn(201, createActivity("1", Statuses.SUCCEEDED)).once();
+
+        PipelineActivity answer = new BuildSyncRunListener().replayActivity(server.getClient(), NAMESPACE, createEntry(Statuses.SUCCEEDED));
+        assertEquals("1", answer.getMetadata().getResourceVersion());
+
+        server.getMockServer().takeRequest();
+        RecordedRequest create = server.getMockServer().takeRequest();
+        assertEquals("POST", create.getMethod());
+        assertFalse(mapper.readTree(create.getBody().readUtf8()).path("metadata").has("resourceVersion"));
+    }
+
+    @Test
+    public void testReplayPatchOnlyContainsChanges() throws Exception {
+        ObjectNode server = mapper.valueToTree(createActivity("5", Statuses.RUNNING));
+        ((ObjectNode) server.get("spec")).put("author", "someone else");
+
+        assertNull("nothing to replay", BuildSyncRunListener.createReplayPatch(server, createEntry(Statuses.RUNNING)));
+
+        JsonNode patch = BuildSyncRunListener.createReplayPatch(server, createEntry(Statuses.SUCCEEDED));
+        assertEquals(mapper.readTree("{\"metadata\":{\"resourceVersion\":\"5\"},\"spec\":{\"status\":\"Succeeded\"}}"), patch);
+    }
+
+    @Test
+    public void testStepsWrittenByOthersSurviveReplayOfOfflineSnapshot() throws Exception {
+        PipelineActivity serverCopy = createActivity("5", Statuses.RUNNING);
+        serverCopy.getSpec().getSteps().add(createStage("Build", Statuses.RUNNING));
+        PipelineActivityStep promote = new PipelineActivityStep();
+        promote.setKind("promote");
+        PromoteActivityStep promoteStep = new PromoteActivityStep();
+        promoteStep.setName("Promote to staging");
+        promoteStep.setEnvironment("staging");
+        promote.setPromote(promoteStep);
+        serverCopy.getSpec().getSteps().add(promote);
+
+        // the API server could not be reached so the run was applied to a new activity
+        PipelineActivity snapshot = createActivity(null, Statuses.SUCCEEDED);
+        snapshot.getSpec().getSteps().add(createStage("Build", Statuses.SUCCEEDED));
+        snapshot.getSpec().getSteps().add(createStage("Test", Statuses.SUCCEEDED));
+        ActivityOutbox.Entry entry = new ActivityOutbox.Entry(NAME, 1, mapper.valueToTree(snapshot), false);
+
+        JsonNode patch = BuildSyncRunListener.createReplayPatch(mapper.valueToTree(serverCopy), entry);
+        JsonNode steps = patch.path("spec").path("steps");
+        assertEquals(3, steps.size());
+        assertEquals(Statuses.SUCCEEDED, steps.get(0).path("stage").path("status").asText());
+        assertEquals("Test", steps.get(1).path("stage").path("name").asText());
+        assertEquals("the promotion must survive the replay", "staging", steps.get(2).path("promote").path("environment").asText());
+        assertEquals("5", patch.path("metadata").path("resourceVersion").asText());
+    }
+
+    @Test
+    public void testDiffsStateBasedOnTheSameServerCopy() throws Exception {
+        PipelineActivity serverCopy = createActivity("5", Statuses.RUNNING);
+        serverCopy.getSpec().setAuthor("someone");
+        PipelineActivity journaled = createActivity("5", Statuses.SUCCEEDED);
+        ActivityOutbox.Entry entry = new ActivityOutbox.Entry(NAME, 1, mapper.valueToTree(journaled), true);
+
+        JsonNode patch = BuildSyncRunListener.createReplayPatch(mapper.valueToTree(serverCopy), entry);
+        assertTrue("a field we removed from the same copy is removed", patch.path("spec").path("author").isNull());
+    }
+
+    private static PipelineActivityStep createStage(String name, String status) {
+        StageActivityStep stage = new StageActivityStep();
+        stage.setName(name);
+        stage.setStatus(status);
+        PipelineActivityStep step = new PipelineActivityStep();
+        step.setKind("stage");
+        step.setStage(stage);
+        return step;
+    }
+
+    private JsonNode takePatch() throws Exception {
+        RecordedRequest request = server.getMockServer().takeRequest();
+        assertEquals("PATCH", request.getMethod());
+        return mapper.readTree(request.getBody().readUtf8());
+    }
+
+    private ActivityOutbox.Entry createEntry(String status) {
+        PipelineActivity journaled = createActivity("4", status);
+        return new ActivityOutbox.Entry(NAME, 1, mapper.valueToTree(journaled), true);
+    }
+
+    private static PipelineActivity createActivity(String resourceVersion, String status) {
+        PipelineActivity activity = new PipelineActivity();
+        activity.setMetadata(new ObjectMetaBuilder().withName(NAME).withResourceVersion(resourceVersion)
+                .withLabels(Collections.singletonMap("branch", "master")).build());
+        PipelineActivitySpec spec = new PipelineActivitySpec();
+        spec.setPipeline("jenkins-x/demo/master");
+        spec.setBuild("1");
+        spec.setStatus(status);
+        activity.setSpec(spec);
+        return activity;
+    }
+}
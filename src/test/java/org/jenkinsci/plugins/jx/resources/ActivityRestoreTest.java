@@ -0,0 +1,133 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.fabric8.kubernetes.client.server.mock.KubernetesMockServer;
+import io.fabric8.mockwebserver.Context;
+import io.jenkins.x.client.kube.KubernetesNames;
+import io.jenkins.x.client.kube.Statuses;
+import okhttp3.mockwebserver.MockWebServer;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.support.steps.input.InputAction;
+import org.jenkinsci.plugins.workflow.support.steps.input.InputStepExecution;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.RestartableJenkinsRule;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Restarts Jenkins while a pipeline is running and checks that we carry on syncing its activity from what we last
+ * wrote rather than loading it from the API server
+ */
+public class ActivityRestoreTest {
+    private static final String NAMESPACE = "jx";
+    private static final long TIMEOUT_MS = 60000;
+
+    @Rule
+    public RestartableJenkinsRule story = new RestartableJenkinsRule();
+
+    private PipelineActivityApiDispatcher dispatcher;
+    private KubernetesMockServer server;
+
+    @Before
+    public void setUp() {
+        dispatcher = new PipelineActivityApiDispatcher();
+        server = new KubernetesMockServer(new Context(), new MockWebServer(), new HashMap<>(), dispatcher, false);
+        server.init();
+        KubernetesUtils.shutdownKubernetesClient();
+    }
+
+    @After
+    public void tearDown() {
+        KubernetesUtils.shutdownKubernetesClient();
+        server.destroy();
+    }
+
+    @Test
+    public void testResumedRunIsNotLoadedAgain() {
+        story.then(r -> {
+            GlobalPluginConfiguration config = GlobalPluginConfiguration.get();
+            config.setServer(server.url("/"));
+            config.setNamespace(NAMESPACE);
+            config.save();
+
+            WorkflowJob job = r.createProject(WorkflowJob.class, "demo");
+            job.setDefinition(new CpsFlowDefinition(
+                    "stage('Build') { echo 'building' }\n" +
+                    "stage('Approve') { input 'Ship it?' }", true));
+            WorkflowRun run = job.scheduleBuild2(0).waitForStart();
+            waitForInput(run);
+
+            // wait until the paused stage is written and we have saved what we wrote
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (!isSaved(run) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            assertTrue("the paused stage was not synced", isSaved(run));
+        });
+        story.then(r -> {
+            WorkflowRun run = r.jenkins.getItemByFullName("demo", WorkflowJob.class).getBuildByNumber(1);
+            BuildSyncRunListener listener = BuildSyncRunListener.get();
+            SyncMetrics metrics = listener.getMetrics();
+
+            // resumed runs are first synced at some point in the recovery window
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (metrics.getSyncCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            assertTrue("the resumed run was not synced", metrics.getSyncCount() > 0);
+            assertEquals("loaded the activity of the resumed run", 0, metrics.getGetCalls());
+
+            waitForInput(run).proceed(null);
+            r.assertBuildStatusSuccess(r.waitForCompletion(run));
+            deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (!Statuses.SUCCEEDED.equals(getActivity(run).path("spec").path("status").asText()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            assertEquals(Statuses.SUCCEEDED, getActivity(run).path("spec").path("status").asText());
+            assertEquals("the restored resourceVersion was stale", 0, metrics.getGetCalls());
+        });
+    }
+
+    private boolean isSaved(WorkflowRun run) throws Exception {
+        JsonNode activity = dispatcher.getActivity(getName(run));
+        ActivitySyncAction action = ActivitySyncAction.load(run);
+        if (activity == null || action == null) {
+            return false;
+        }
+        boolean paused = false;
+        for (JsonNode step : activity.path("spec").path("steps")) {
+            paused |= Statuses.WAITING_FOR_APPROVAL.equals(step.path("stage").path("status").asText());
+        }
+        return paused && activity.path("metadata").path("resourceVersion").asText().equals(action.getResourceVersion());
+    }
+
+    private JsonNode getActivity(WorkflowRun run) {
+        String name = getName(run);
+        JsonNode activity = dispatcher.getActivity(name);
+        assertNotNull("no activity " + name, activity);
+        return activity;
+    }
+
+    private static String getName(WorkflowRun run) {
+        return KubernetesNames.convertToKubernetesName(run.getParent().getFullName() + "-" + run.getNumber(), false);
+    }
+
+    private static InputStepExecution waitForInput(WorkflowRun run) throws Exception {
+        while (true) {
+            InputAction action = run.getAction(InputAction.class);
+            if (action != null && !action.getExecutions().isEmpty()) {
+                return action.getExecutions().get(0);
+            }
+            Thread.sleep(100);
+        }
+    }
+}
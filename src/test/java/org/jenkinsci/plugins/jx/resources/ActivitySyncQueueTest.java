@@ -0,0 +1,201 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Run;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the {@link ActivitySyncQueue} with a sync function which records when each run is synced
+ */
+public class ActivitySyncQueueTest {
+    private static final long TIMEOUT_MS = 10000;
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private final BlockingQueue<Sync> syncs = new LinkedBlockingQueue<>();
+    private ActivitySyncQueue queue;
+
+    @After
+    public void tearDown() {
+        if (queue != null) {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void testCoalescesBurstOfUpdatesIntoOneSync() throws Exception {
+        Run run = createRun();
+        queue = new ActivitySyncQueue(this::record, 200, 2);
+
+        for (int i = 0; i < 50; i++) {
+            queue.submit(run, false);
+        }
+        assertEquals(1, queue.size());
+
+        assertSame(run, nextSync().run);
+        assertNull("the burst should be synced once", syncs.poll(500, TimeUnit.MILLISECONDS));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testSyncsByTheMaxFlushDelay() throws Exception {
+        Run run = createRun();
+        long maxFlushDelayMs = 500;
+        queue = new ActivitySyncQueue(this::record, maxFlushDelayMs, 2);
+
+        long submitted = System.nanoTime();
+        queue.submit(run, false);
+        // later updates must not push back the deadline of the first one
+        Thread.sleep(400);
+        queue.submit(run, false);
+
+        Sync sync = nextSync();
+        long delayMs = TimeUnit.NANOSECONDS.toMillis(sync.nanoTime - submitted);
+        assertTrue("synced after " + delayMs + "ms", delayMs >= maxFlushDelayMs && delayMs < maxFlushDelayMs + 350);
+        assertNull(syncs.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testFlushNowSyncsWithoutWaitingForTheDeadline() throws Exception {
+        Run run = createRun();
+        queue = new ActivitySyncQueue(this::record, TimeUnit.MINUTES.toMillis(10), 2);
+
+        queue.submit(run, false);
+        queue.submit(run, true);
+
+        assertSame(run, nextSync().run);
+        assertEquals("the delayed flush should be replaced by the immediate one", 0, queue.size());
+        assertNull(syncs.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testRunsOnDifferentWorkersSyncInParallel() throws Exception {
+        AtomicReference<Run> blocked = new AtomicReference<>();
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch blocking = new CountDownLatch(1);
+        queue = new ActivitySyncQueue(run -> {
+            if (run == blocked.get()) {
+                blocking.countDown();
+                awaitQuietly(release);
+            }
+            record(run);
+        }, 0, 2);
+        FreeStyleProject project = j.createFreeStyleProject();
+        Run slow = j.buildAndAssertSuccess(project);
+        Run fast = j.buildAndAssertSuccess(project);
+        while (queue.getWorker(slow) == queue.getWorker(fast)) {
+            fast = j.buildAndAssertSuccess(project);
+        }
+        blocked.set(slow);
+
+        queue.submit(slow, true);
+        assertTrue(blocking.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        queue.submit(fast, true);
+        // the other worker is not held up by the slow sync
+        assertSame(fast, nextSync().run);
+
+        release.countDown();
+        assertSame(slow, nextSync().run);
+    }
+
+    @Test
+    public void testSyncsOfOneRunStayInOrder() throws Exception {
+        Run run = createRun();
+        AtomicInteger version = new AtomicInteger();
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        List<Integer> synced = new CopyOnWriteArrayList<>();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        queue = new ActivitySyncQueue(r -> {
+            if (active.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            threads.add(Thread.currentThread().getName());
+            synced.add(version.get());
+            sleepQuietly(5);
+            active.decrementAndGet();
+            record(r);
+        }, 10, 4);
+
+        int updates = 200;
+        for (int i = 0; i < updates; i++) {
+            version.incrementAndGet();
+            queue.submit(run, i % 10 == 0);
+            sleepQuietly(1);
+        }
+        queue.submit(run, true);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!synced.contains(updates) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        assertTrue("the updates should be synced more than once", synced.size() > 1);
+        assertEquals("the last sync should see the last update", Integer.valueOf(updates), synced.get(synced.size() - 1));
+        for (int i = 1; i < synced.size(); i++) {
+            assertTrue("sync " + i + " went backwards in " + synced, synced.get(i) >= synced.get(i - 1));
+        }
+        assertEquals("syncs of a run must not overlap", 0, overlaps.get());
+        assertEquals("a run is always synced by the same worker", 1, threads.size());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Run createRun() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        return j.buildAndAssertSuccess(project);
+    }
+
+    private void record(Run run) {
+        syncs.add(new Sync(run));
+    }
+
+    private Sync nextSync() throws InterruptedException {
+        Sync sync = syncs.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("no sync within " + TIMEOUT_MS + "ms", sync);
+        return sync;
+    }
+
+    private static class Sync {
+        private final Run run;
+        private final long nanoTime = System.nanoTime();
+
+        Sync(Run run) {
+            this.run = run;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+    private final AtomicLong now = new AtomicLong();
+    private final CircuitBreaker breaker = new CircuitBreaker(10, 5, 0.5, 1000, 30000, now::get);
+
+    @Test
+    public void testOpensWhenMostCallsFail() {
+        breaker.onSuccess(10);
+        breaker.onSuccess(10);
+        breaker.onFailure(10);
+        breaker.onFailure(10);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.onFailure(10);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertEquals(30000, breaker.getRemainingOpenMs());
+    }
+
+    @Test
+    public void testSlowCallsCountAsBad() {
+        for (int i = 0; i < 5; i++) {
+            breaker.onSuccess(5000);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testHalfOpenLetsOneProbeThrough() {
+        for (int i = 0; i < 5; i++) {
+            breaker.onFailure(10);
+        }
+        now.addAndGet(30000);
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse("only one probe at a time", breaker.allowRequest());
+
+        breaker.onFailure(10);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        now.addAndGet(30000);
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess(10);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+}
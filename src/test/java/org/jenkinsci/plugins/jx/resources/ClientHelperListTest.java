@@ -0,0 +1,130 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import io.fabric8.kubernetes.api.model.StatusBuilder;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.server.mock.KubernetesServer;
+import io.jenkins.x.client.kube.ClientHelper;
+import io.jenkins.x.client.kube.PipelineActivity;
+import io.jenkins.x.client.kube.PipelineActivityPage;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Lists pages of activities from a mock API server with {@link ClientHelper#listPipelineActivities}
+ */
+public class ClientHelperListTest {
+    private static final String NAMESPACE = "test";
+    private static final String PATH = "/apis/jenkins.io/v1/namespaces/" + NAMESPACE + "/pipelineactivities";
+
+    @Rule
+    public KubernetesServer server = new KubernetesServer();
+
+    @Test
+    public void testListsEveryPageUsingTheContinueToken() throws Exception {
+        server.expect().get().withPath(PATH + "?limit=2")
+                .andReturn(200, createList("{\"resourceVersion\":\"42\",\"continue\":\"abc\",\"remainingItemCount\":1}", "1", "2")).once();
+        server.expect().get().withPath(PATH + "?limit=2&continue=abc")
+                .andReturn(200, createList("{\"resourceVersion\":\"42\"}", "3")).once();
+
+        List<String> builds = new ArrayList<>();
+        PipelineActivityPage first = ClientHelper.listPipelineActivities(server.getClient(), NAMESPACE, 2, null, item -> builds.add(item.getSpec().getBuild()));
+        assertTrue(first.hasMore());
+        assertEquals("abc", first.getContinueToken());
+        assertEquals(Long.valueOf(1), first.getRemainingItemCount());
+        assertEquals("42", first.getResourceVersion());
+
+        PipelineActivityPage last = ClientHelper.listPipelineActivities(server.getClient(), NAMESPACE, 2, first.getContinueToken(), item -> builds.add(item.getSpec().getBuild()));
+        assertFalse(last.hasMore());
+        assertNull(last.getContinueToken());
+        assertEquals("1,2,3", String.join(",", builds));
+
+        assertEquals(PATH + "?limit=2", server.getMockServer().takeRequest().getPath());
+        assertEquals(PATH + "?limit=2&continue=abc", server.getMockServer().takeRequest().getPath());
+    }
+
+    @Test
+    public void testMissingRemainingItemCount() throws Exception {
+        // older API servers and lists which are not consistent reads do not return a count
+        server.expect().get().withPath(PATH + "?limit=1")
+                .andReturn(200, createList("{\"resourceVersion\":\"42\",\"continue\":\"abc\"}", "1")).once();
+
+        PipelineActivityPage page = ClientHelper.listPipelineActivities(server.getClient(), NAMESPACE, 1, null);
+        assertEquals(1, page.getItems().size());
+        assertTrue(page.hasMore());
+        assertNull(page.getRemainingItemCount());
+    }
+
+    @Test
+    public void testIgnoresUnknownFields() throws Exception {
+        String json = "{\"kind\":\"PipelineActivityList\",\"newListField\":{\"nested\":[1,2,{\"a\":\"b\"}]},"
+                + "\"items\":[{\"metadata\":{\"name\":\"demo-master-1\"},\"newItemField\":[\"x\"],"
+                + "\"spec\":{\"build\":\"1\",\"newSpecField\":true,"
+                + "\"steps\":[{\"kind\":\"Stage\",\"newStepField\":{\"a\":1},\"stage\":{\"name\":\"Build\"}}]}}],"
+                + "\"metadata\":{\"resourceVersion\":\"42\",\"newMetadataField\":\"x\",\"remainingItemCount\":\"not a number\"}}";
+        server.expect().get().withPath(PATH + "?limit=1").andReturn(200, json).once();
+
+        PipelineActivityPage page = ClientHelper.listPipelineActivities(server.getClient(), NAMESPACE, 1, null);
+        assertEquals(1, page.getItems().size());
+        PipelineActivity activity = page.getItems().get(0);
+        assertEquals("1", activity.getSpec().getBuild());
+        assertEquals("Build", activity.getSpec().getSteps().get(0).getStage().getName());
+        assertEquals("42", page.getResourceVersion());
+        assertNull(page.getRemainingItemCount());
+    }
+
+    @Test
+    public void testFailsOnMalformedList() {
+        String truncated = createList("{\"resourceVersion\":\"42\"}", "1", "2");
+        server.expect().get().withPath(PATH + "?limit=2").andReturn(200, truncated.substring(0, truncated.length() / 2)).once();
+        server.expect().get().withPath(PATH + "?limit=3").andReturn(200, "[]").once();
+
+        List<PipelineActivity> items = new ArrayList<>();
+        assertListFails(2, items);
+        assertTrue("only complete items are passed on", items.size() < 2);
+        assertListFails(3, items);
+    }
+
+    @Test
+    public void testFailsOnErrorStatus() {
+        server.expect().get().withPath(PATH + "?limit=2&continue=abc")
+                .andReturn(410, new StatusBuilder().withCode(410).withReason("Expired").withMessage("continue token is too old").build()).once();
+        try {
+            ClientHelper.listPipelineActivities(server.getClient(), NAMESPACE, 2, "abc");
+            fail("expected the list to fail");
+        } catch (KubernetesClientException e) {
+            assertEquals(410, e.getCode());
+            assertEquals("Expired", e.getStatus().getReason());
+        }
+    }
+
+    private void assertListFails(int limit, List<PipelineActivity> items) {
+        try {
+            ClientHelper.listPipelineActivities(server.getClient(), NAMESPACE, limit, null, items::add);
+            fail("expected the list to fail");
+        } catch (KubernetesClientException e) {
+            // expected
+        }
+    }
+
+    private static String createList(String metadata, String... builds) {
+        StringBuilder buffer = new StringBuilder("{\"apiVersion\":\"jenkins.io/v1\",\"kind\":\"PipelineActivityList\",\"metadata\":");
+        buffer.append(metadata).append(",\"items\":[");
+        for (int i = 0; i < builds.length; i++) {
+            if (i > 0) {
+                buffer.append(",");
+            }
+            buffer.append("{\"metadata\":{\"name\":\"demo-master-").append(builds[i]).append("\"},")
+                    .append("\"spec\":{\"pipeline\":\"jenkins-x/demo/master\",\"build\":\"").append(builds[i]).append("\"}}");
+        }
+        return buffer.append("]}").toString();
+    }
+}
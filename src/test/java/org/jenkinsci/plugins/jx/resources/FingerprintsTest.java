@@ -0,0 +1,134 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jenkinsci.plugins.jx.resources;
+
+import io.jenkins.x.client.kube.Fingerprints;
+import io.jenkins.x.client.kube.PipelineActivitySpec;
+import io.jenkins.x.client.kube.PipelineActivityStep;
+import io.jenkins.x.client.kube.PipelineAttachment;
+import io.jenkins.x.client.kube.StageActivityStep;
+import io.jenkins.x.client.kube.Statuses;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ */
+public class FingerprintsTest {
+
+    @Test
+    public void testFingerprintChanges() throws Exception {
+        PipelineActivitySpec spec = createSpec(10);
+        long fingerprint = Fingerprints.of(spec);
+        assertEquals(fingerprint, Fingerprints.of(createSpec(10)));
+
+        spec.getSteps().get(5).getStage().setStatus(Statuses.SUCCEEDED);
+        long stageChanged = Fingerprints.of(spec);
+        assertNotEquals(fingerprint, stageChanged);
+
+        spec.getSteps().get(5).getStage().setCompletedTimestamp("2019-01-01T10:00:00Z");
+        long timestampChanged = Fingerprints.of(spec);
+        assertNotEquals(stageChanged, timestampChanged);
+
+        spec.setStatus(Statuses.SUCCEEDED);
+        long statusChanged = Fingerprints.of(spec);
+        assertNotEquals(timestampChanged, statusChanged);
+
+        spec.getSteps().add(createStage(10));
+        assertNotEquals(statusChanged, Fingerprints.of(spec));
+    }
+
+    @Test
+    public void testFingerprintDistinguishesNullAndEmpty() throws Exception {
+        PipelineActivitySpec spec = createSpec(1);
+        long fingerprint = Fingerprints.of(spec);
+        spec.setAuthor("");
+        assertNotEquals(fingerprint, Fingerprints.of(spec));
+    }
+
+    @Test
+    public void testFingerprintAllowsNullAttachments() throws Exception {
+        PipelineActivitySpec spec = createSpec(1);
+        long fingerprint = Fingerprints.of(spec);
+        spec.getAttachments().add(null);
+        long nullAttachment = Fingerprints.of(spec);
+        assertNotEquals(fingerprint, nullAttachment);
+
+        PipelineAttachment attachment = new PipelineAttachment();
+        attachment.setName("coverage");
+        spec.getAttachments().add(attachment);
+        assertNotEquals(nullAttachment, Fingerprints.of(spec));
+    }
+
+    @Test
+    public void testFingerprintDistinguishesStringsWithTheSameHashCode() throws Exception {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+
+        PipelineActivitySpec spec = createSpec(3);
+        spec.setAuthor("Aa");
+        long fingerprint = Fingerprints.of(spec);
+        spec.setAuthor("BB");
+        assertNotEquals(fingerprint, Fingerprints.of(spec));
+
+        spec.getSteps().get(1).getStage().setDescription("AaAa");
+        fingerprint = Fingerprints.of(spec);
+        spec.getSteps().get(1).getStage().setDescription("BBBB");
+        assertNotEquals(fingerprint, Fingerprints.of(spec));
+
+        PipelineAttachment attachment = new PipelineAttachment();
+        attachment.setUrls(new ArrayList<>(Collections.singletonList("Aa")));
+        spec.getAttachments().add(attachment);
+        fingerprint = Fingerprints.of(spec);
+        attachment.getUrls().set(0, "BB");
+        assertNotEquals(fingerprint, Fingerprints.of(spec));
+
+        spec.getAdditionalProperties().put("extra", "Aa");
+        fingerprint = Fingerprints.of(spec);
+        spec.getAdditionalProperties().put("extra", "BB");
+        assertNotEquals(fingerprint, Fingerprints.of(spec));
+    }
+
+    protected PipelineActivitySpec createSpec(int stageCount) {
+        PipelineActivitySpec spec = new PipelineActivitySpec();
+        spec.setPipeline("jstrachan/mynode10/master");
+        spec.setBuild("9");
+        spec.setStatus(Statuses.RUNNING);
+        spec.setStartedTimestamp("2019-01-01T09:00:00Z");
+        spec.setGitOwner("jstrachan");
+        spec.setGitRepository("mynode10");
+        spec.setGitBranch("master");
+        for (int i = 0; i < stageCount; i++) {
+            spec.getSteps().add(createStage(i));
+        }
+        return spec;
+    }
+
+    protected PipelineActivityStep createStage(int index) {
+        StageActivityStep stage = new StageActivityStep();
+        stage.setName("Stage " + index);
+        stage.setStatus(Statuses.PENDING);
+        stage.setStartedTimestamp("2019-01-01T09:00:00Z");
+        PipelineActivityStep step = new PipelineActivityStep();
+        step.setKind("stage");
+        step.setStage(stage);
+        return step;
+    }
+}
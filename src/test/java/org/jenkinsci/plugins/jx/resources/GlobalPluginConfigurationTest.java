@@ -0,0 +1,71 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import hudson.util.FormValidation;
+import io.fabric8.kubernetes.api.model.StatusBuilder;
+import io.fabric8.kubernetes.client.server.mock.KubernetesServer;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Validates the connection to a mock API server from the global configuration
+ */
+public class GlobalPluginConfigurationTest {
+    private static final String NAMESPACE = "test";
+    private static final String PATH = "/apis/jenkins.io/v1/namespaces/" + NAMESPACE + "/pipelineactivities?limit=1";
+    private static final String ITEM = "{\"metadata\":{\"name\":\"demo-master-1\"},\"spec\":{\"build\":\"1\"}}";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public KubernetesServer server = new KubernetesServer();
+
+    @After
+    public void tearDown() {
+        KubernetesUtils.shutdownKubernetesClient();
+    }
+
+    @Test
+    public void testCountsRecordsFromTheRemainingItemCount() {
+        server.expect().get().withPath(PATH)
+                .andReturn(200, "{\"metadata\":{\"continue\":\"abc\",\"remainingItemCount\":41},\"items\":[" + ITEM + "]}").once();
+
+        FormValidation validation = validateClient();
+        assertEquals(FormValidation.Kind.OK, validation.kind);
+        assertEquals("Found 42 existing build records in namespace test", validation.getMessage());
+    }
+
+    @Test
+    public void testMoreRecordsWithoutACount() {
+        server.expect().get().withPath(PATH)
+                .andReturn(200, "{\"metadata\":{\"continue\":\"abc\"},\"items\":[" + ITEM + "]}").once();
+
+        FormValidation validation = validateClient();
+        assertEquals(FormValidation.Kind.OK, validation.kind);
+        assertEquals("Found existing build records in namespace test", validation.getMessage());
+    }
+
+    @Test
+    public void testNoRecords() {
+        server.expect().get().withPath(PATH).andReturn(200, "{\"metadata\":{},\"items\":[]}").once();
+
+        FormValidation validation = validateClient();
+        assertEquals(FormValidation.Kind.OK, validation.kind);
+        assertEquals("Found 0 existing build records in namespace test", validation.getMessage());
+    }
+
+    @Test
+    public void testReportsErrors() {
+        server.expect().get().withPath(PATH).andReturn(403, new StatusBuilder().withCode(403).withReason("Forbidden").build()).once();
+
+        assertEquals(FormValidation.Kind.ERROR, validateClient().kind);
+    }
+
+    private FormValidation validateClient() {
+        return GlobalPluginConfiguration.get().doValidateClient(server.getClient().getMasterUrl().toString(), NAMESPACE);
+    }
+}
@@ -0,0 +1,44 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class HistogramTest {
+    private final Histogram histogram = new Histogram(10, 100, 1000);
+
+    @Test
+    public void testEmpty() {
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getQuantile(0.99), 0);
+    }
+
+    @Test
+    public void testBucketsIncludeTheirUpperBound() {
+        histogram.observe(1);
+        histogram.observe(10);
+        histogram.observe(11);
+        histogram.observe(1000);
+        histogram.observe(5000);
+        assertArrayEquals(new long[]{2, 1, 1, 1}, histogram.getBucketCounts());
+        assertEquals(5, histogram.getCount());
+        assertEquals(6022, histogram.getSum(), 0);
+        assertEquals(5000, histogram.getMax(), 0);
+    }
+
+    @Test
+    public void testQuantiles() {
+        for (int i = 0; i < 90; i++) {
+            histogram.observe(5);
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.observe(50);
+        }
+        histogram.observe(2000);
+        assertEquals(10, histogram.getQuantile(0.5), 0);
+        assertEquals(100, histogram.getQuantile(0.99), 0);
+        assertEquals(2000, histogram.getQuantile(1), 0);
+    }
+}
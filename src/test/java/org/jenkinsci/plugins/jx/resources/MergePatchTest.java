@@ -0,0 +1,57 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jenkinsci.plugins.jx.resources;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.jenkins.x.client.util.MergePatch;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ */
+public class MergePatchTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void testNoChanges() throws Exception {
+        assertPatch("{}", "{\"a\":1,\"b\":{\"c\":\"d\"}}", "{\"a\":1,\"b\":{\"c\":\"d\"}}");
+    }
+
+    @Test
+    public void testChangedFields() throws Exception {
+        assertPatch("{\"b\":{\"c\":\"e\"}}", "{\"a\":1,\"b\":{\"c\":\"d\",\"f\":2}}", "{\"a\":1,\"b\":{\"c\":\"e\",\"f\":2}}");
+        assertPatch("{\"g\":true}", "{\"a\":1}", "{\"a\":1,\"g\":true}");
+    }
+
+    @Test
+    public void testRemovedFields() throws Exception {
+        assertPatch("{\"a\":null}", "{\"a\":1,\"b\":2}", "{\"b\":2}");
+    }
+
+    @Test
+    public void testArraysAreReplaced() throws Exception {
+        assertPatch("{\"steps\":[{\"name\":\"a\"},{\"name\":\"c\"}]}", "{\"steps\":[{\"name\":\"a\"},{\"name\":\"b\"}]}", "{\"steps\":[{\"name\":\"a\"},{\"name\":\"c\"}]}");
+    }
+
+    protected void assertPatch(String expected, String source, String target) throws Exception {
+        JsonNode patch = MergePatch.diff(mapper.readTree(source), mapper.readTree(target));
+        assertEquals(mapper.readTree(expected), patch);
+        assertEquals(mapper.readTree(target), PipelineActivityApiDispatcher.applyMergePatch(mapper.readTree(source), patch));
+    }
+}
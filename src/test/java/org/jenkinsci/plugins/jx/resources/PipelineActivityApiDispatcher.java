@@ -0,0 +1,174 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.jenkins.x.client.kube.Statuses;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A mock API server for PipelineActivity resources which records how much load the plugin puts on it.
+ * <p>
+ * The CRUD mode of the fabric8 mock server does not support JSON merge patches so this dispatcher implements just
+ * the get, create and merge patch calls the plugin makes, including the <code>resourceVersion</code> checks, and
+ * answers 404 to anything else.
+ */
+public class PipelineActivityApiDispatcher extends Dispatcher {
+    private static final Pattern PATH = Pattern.compile("/apis/jenkins\\.io/v1/namespaces/([^/]+)/pipelineactivities(?:/([^/?]+))?(?:\\?.*)?");
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, JsonNode> activities = new ConcurrentHashMap<>();
+    private final Map<String, Long> completedAt = new ConcurrentHashMap<>();
+    private final AtomicLong resourceVersion = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) {
+        requests.incrementAndGet();
+        bytesWritten.addAndGet(request.getBodySize());
+        Matcher matcher = PATH.matcher(request.getPath());
+        if (!matcher.matches()) {
+            return status(404, "NotFound");
+        }
+        String namespace = matcher.group(1);
+        String name = matcher.group(2);
+        try {
+            switch (request.getMethod()) {
+                case "GET":
+                    return name != null ? get(name) : status(405, "MethodNotAllowed");
+                case "POST":
+                    return create(namespace, (ObjectNode) mapper.readTree(request.getBody().readUtf8()));
+                case "PATCH":
+                    return name != null ? patch(name, mapper.readTree(request.getBody().readUtf8())) : status(405, "MethodNotAllowed");
+                default:
+                    return status(405, "MethodNotAllowed");
+            }
+        } catch (IOException e) {
+            return status(400, "BadRequest");
+        }
+    }
+
+    private MockResponse get(String name) {
+        JsonNode activity = activities.get(name);
+        return activity != null ? json(200, activity) : status(404, "NotFound");
+    }
+
+    private synchronized MockResponse create(String namespace, ObjectNode activity) {
+        ObjectNode metadata = activity.with("metadata");
+        String name = metadata.path("name").asText();
+        if (activities.containsKey(name)) {
+            return status(409, "AlreadyExists");
+        }
+        metadata.put("namespace", namespace);
+        metadata.put("resourceVersion", Long.toString(resourceVersion.incrementAndGet()));
+        store(name, activity);
+        return json(201, activity);
+    }
+
+    private synchronized MockResponse patch(String name, JsonNode patch) {
+        JsonNode current = activities.get(name);
+        if (current == null) {
+            return status(404, "NotFound");
+        }
+        JsonNode expectedVersion = patch.path("metadata").get("resourceVersion");
+        if (expectedVersion != null && !expectedVersion.asText().equals(current.path("metadata").path("resourceVersion").asText())) {
+            return status(409, "Conflict");
+        }
+        ObjectNode activity = (ObjectNode) applyMergePatch(current, patch);
+        activity.with("metadata").put("resourceVersion", Long.toString(resourceVersion.incrementAndGet()));
+        store(name, activity);
+        return json(200, activity);
+    }
+
+    /**
+     * Applies the JSON merge patch to the document as the API server would
+     *
+     * @param target the document which is not modified
+     * @param patch  the merge patch
+     * @return the patched document
+     */
+    static JsonNode applyMergePatch(JsonNode target, JsonNode patch) {
+        if (!patch.isObject()) {
+            return patch;
+        }
+        ObjectNode answer = target != null && target.isObject() ? ((ObjectNode) target).deepCopy() : JsonNodeFactory.instance.objectNode();
+        Iterator<Map.Entry<String, JsonNode>> iter = patch.fields();
+        while (iter.hasNext()) {
+            Map.Entry<String, JsonNode> entry = iter.next();
+            String name = entry.getKey();
+            JsonNode value = entry.getValue();
+            if (value.isNull()) {
+                answer.remove(name);
+            } else {
+                answer.set(name, applyMergePatch(answer.get(name), value));
+            }
+        }
+        return answer;
+    }
+
+    private void store(String name, ObjectNode activity) {
+        activities.put(name, activity);
+        String status = activity.path("spec").path("status").asText();
+        if (Statuses.isCompleted(status)) {
+            completedAt.putIfAbsent(name, System.currentTimeMillis());
+        }
+    }
+
+    private MockResponse json(int code, JsonNode body) {
+        return new MockResponse().setResponseCode(code).setHeader("Content-Type", "application/json").setBody(body.toString());
+    }
+
+    private MockResponse status(int code, String reason) {
+        ObjectNode status = mapper.createObjectNode();
+        status.put("kind", "Status");
+        status.put("apiVersion", "v1");
+        status.put("status", "Failure");
+        status.put("reason", reason);
+        status.put("code", code);
+        return json(code, status);
+    }
+
+    public void reset() {
+        requests.set(0);
+        bytesWritten.set(0);
+        completedAt.clear();
+    }
+
+    /**
+     * Returns the activity as it is stored or null if it does not exist
+     */
+    public JsonNode getActivity(String name) {
+        return activities.get(name);
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Returns when the activity was first written with a completed status or null if it has not been
+     */
+    public Long getCompletedAt(String name) {
+        return completedAt.get(name);
+    }
+
+    public int getCompletedCount() {
+        return completedAt.size();
+    }
+}
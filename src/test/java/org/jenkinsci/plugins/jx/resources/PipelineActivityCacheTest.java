@@ -0,0 +1,45 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.jenkins.x.client.kube.PipelineActivity;
+import io.jenkins.x.client.kube.PipelineActivitySpec;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class PipelineActivityCacheTest {
+
+    @Test
+    public void testGrowingKeepsEveryActivity() {
+        PipelineActivityCache cache = new PipelineActivityCache(2);
+        cache.setMaxSize(3);
+        for (int i = 0; i < 3; i++) {
+            cache.put("demo-" + i, createActivity("demo-" + i));
+        }
+        assertEquals(3, cache.size());
+        assertNotNull(cache.get("demo-0"));
+    }
+
+    @Test
+    public void testShrinkingDropsLeastRecentlyUsed() {
+        PipelineActivityCache cache = new PipelineActivityCache(3);
+        for (int i = 0; i < 3; i++) {
+            cache.put("demo-" + i, createActivity("demo-" + i));
+        }
+        cache.get("demo-0");
+        cache.setMaxSize(1);
+
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get("demo-0"));
+        assertNull(cache.get("demo-1"));
+    }
+
+    private static PipelineActivity createActivity(String name) {
+        PipelineActivity activity = new PipelineActivity();
+        activity.setMetadata(new ObjectMetaBuilder().withName(name).build());
+        activity.setSpec(new PipelineActivitySpec());
+        return activity;
+    }
+}
@@ -0,0 +1,49 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import io.jenkins.x.client.kube.ClientHelper;
+import io.jenkins.x.client.kube.PipelineActivity;
+import io.jenkins.x.client.kube.PipelineActivityPage;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineActivityListDecodingTest {
+
+    @Test
+    public void testStreamsItemsAndReadsListMetadata() throws Exception {
+        String json = "{\"apiVersion\":\"jenkins.io/v1\",\"kind\":\"PipelineActivityList\","
+                + "\"items\":["
+                + "{\"metadata\":{\"name\":\"demo-master-1\",\"resourceVersion\":\"10\"},\"spec\":{\"pipeline\":\"jenkins-x/demo/master\",\"build\":\"1\",\"steps\":[{\"kind\":\"Stage\",\"stage\":{\"name\":\"Build\"}}]}},"
+                + "{\"metadata\":{\"name\":\"demo-master-2\",\"resourceVersion\":\"11\"},\"spec\":{\"pipeline\":\"jenkins-x/demo/master\",\"build\":\"2\"}}"
+                + "],"
+                + "\"metadata\":{\"resourceVersion\":\"42\",\"continue\":\"next-page\",\"remainingItemCount\":1000}}";
+        List<PipelineActivity> items = new ArrayList<>();
+        PipelineActivityPage page = ClientHelper.readPipelineActivityList(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), items::add);
+
+        assertEquals(2, items.size());
+        assertEquals("demo-master-1", items.get(0).getMetadata().getName());
+        assertEquals("2", items.get(1).getSpec().getBuild());
+        assertTrue("items are not kept in the page", page.getItems().isEmpty());
+        assertEquals("42", page.getResourceVersion());
+        assertEquals("next-page", page.getContinueToken());
+        assertEquals(Long.valueOf(1000), page.getRemainingItemCount());
+    }
+
+    @Test
+    public void testLastPage() throws Exception {
+        String json = "{\"metadata\":{\"resourceVersion\":\"42\"},\"items\":[]}";
+        PipelineActivityPage page = ClientHelper.readPipelineActivityList(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), item -> {
+            throw new AssertionError("unexpected item " + item);
+        });
+        assertEquals("42", page.getResourceVersion());
+        assertNull(page.getContinueToken());
+        assertNull(page.getRemainingItemCount());
+    }
+}
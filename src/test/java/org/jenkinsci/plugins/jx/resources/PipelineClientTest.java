@@ -0,0 +1,271 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import io.fabric8.kubernetes.api.model.ListMetaBuilder;
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.fabric8.kubernetes.api.model.StatusBuilder;
+import io.fabric8.kubernetes.api.model.WatchEvent;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.Watcher;
+import io.fabric8.kubernetes.client.server.mock.KubernetesServer;
+import io.jenkins.x.client.PipelineClient;
+import io.jenkins.x.client.kube.PipelineActivity;
+import io.jenkins.x.client.kube.PipelineActivityList;
+import io.jenkins.x.client.kube.PipelineActivitySpec;
+import io.jenkins.x.client.kube.Statuses;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the {@link PipelineClient} against a mock API server
+ */
+public class PipelineClientTest {
+    private static final String NAMESPACE = "test";
+    private static final String PATH = "/apis/jenkins.io/v1/namespaces/" + NAMESPACE + "/pipelineactivities";
+    private static final long TIMEOUT_MS = 10000;
+
+    @Rule
+    public KubernetesServer server = new KubernetesServer();
+
+    private final List<String> events = new CopyOnWriteArrayList<>();
+    private final List<KubernetesClientException> closes = new CopyOnWriteArrayList<>();
+    private PipelineClient pipelineClient;
+
+    @After
+    public void tearDown() throws Exception {
+        if (pipelineClient != null) {
+            pipelineClient.close();
+        }
+    }
+
+    @Test
+    public void testWatchesFromTheVersionOfTheList() throws Exception {
+        server.expect().withPath(PATH + "?limit=500")
+                .andReturn(200, createList("10", createActivity("1", "1"), createActivity("2", "2"))).once();
+        server.expect().withPath(PATH + "?resourceVersion=10&watch=true")
+                .andUpgradeToWebSocket().open()
+                .waitFor(100).andEmit(new WatchEvent(createActivity("1", "11"), "MODIFIED"))
+                .done().once();
+
+        startClient();
+        awaitEvents("ADDED 1", "ADDED 2", "MODIFIED 1");
+        assertEquals("11", pipelineClient.getResourceVersion());
+        assertEquals(2, pipelineClient.getPipelines().size());
+    }
+
+    @Test
+    public void testListsAgainWhenTheWatchVersionIsGone() throws Exception {
+        server.expect().withPath(PATH + "?limit=500")
+                .andReturn(200, createList("10", createActivity("1", "1"), createActivity("2", "2"))).once();
+        server.expect().withPath(PATH + "?resourceVersion=10&watch=true")
+                .andUpgradeToWebSocket().open()
+                .waitFor(100).andEmit(new WatchEvent(new StatusBuilder().withCode(410).withMessage("too old resource version").build(), "ERROR"))
+                .done().once();
+        server.expect().withPath(PATH + "?limit=500")
+                .andReturn(200, createList("20", createActivity("1", "12"), createActivity("3", "13"))).once();
+        server.expect().withPath(PATH + "?resourceVersion=20&watch=true")
+                .andUpgradeToWebSocket().open()
+                .done().once();
+
+        startClient();
+        // the differences between the lists are fired as events once the watch is reopened after backing off
+        awaitEvents("ADDED 1", "ADDED 2", "MODIFIED 1", "ADDED 3", "DELETED 2");
+        assertEquals("20", pipelineClient.getResourceVersion());
+        assertEquals(2, pipelineClient.getPipelines().size());
+        assertTrue("listeners are not told about closes we recover from", closes.isEmpty());
+    }
+
+    @Test
+    public void testListsEveryPageAndWatchesFromTheVersionOfTheFirstPage() throws Exception {
+        String item = "{\"metadata\":{\"name\":\"jenkins-x-demo-master-%1$s\",\"resourceVersion\":\"%1$s\"},"
+                + "\"spec\":{\"pipeline\":\"jenkins-x/demo/master\",\"build\":\"%1$s\"}}";
+        server.expect().withPath(PATH + "?limit=2")
+                .andReturn(200, "{\"metadata\":{\"resourceVersion\":\"10\",\"continue\":\"abc\"},\"items\":["
+                        + String.format(item, "1") + "," + String.format(item, "2") + "]}").once();
+        server.expect().withPath(PATH + "?limit=2&continue=abc")
+                .andReturn(200, "{\"metadata\":{\"resourceVersion\":\"10\"},\"items\":[" + String.format(item, "3") + "]}").once();
+        server.expect().withPath(PATH + "?resourceVersion=10&watch=true")
+                .andUpgradeToWebSocket().open()
+                .done().once();
+
+        startClient(2);
+        awaitEvents("ADDED 1", "ADDED 2", "ADDED 3");
+        assertEquals("10", pipelineClient.getResourceVersion());
+        assertEquals(3, pipelineClient.getPipelines().size());
+    }
+
+    @Test
+    public void testListenersAreToldWhenClosed() throws Exception {
+        server.expect().withPath(PATH + "?limit=500").andReturn(200, createList("10")).once();
+        server.expect().withPath(PATH + "?resourceVersion=10&watch=true")
+                .andUpgradeToWebSocket().open()
+                .done().once();
+
+        startClient();
+        pipelineClient.close();
+        pipelineClient.close();
+        assertEquals(1, closes.size());
+        assertNull(closes.get(0));
+    }
+
+    @Test
+    public void testReconnectDelayBacksOff() {
+        BackoffClient client = new BackoffClient();
+        long max = 1000;
+        for (int i = 0; i < 10; i++) {
+            long delay = client.getNextReconnectDelay();
+            assertTrue("delay " + delay + " should be between " + max / 2 + " and " + max, delay >= max / 2 && delay <= max);
+            max = Math.min(30000, max * 2);
+        }
+    }
+
+    @Test
+    public void testReadersSeeConsistentViewWhileCacheIsUpdated() throws Exception {
+        EventClient client = new EventClient();
+        int builds = 50;
+        for (int i = 1; i <= builds; i++) {
+            client.receive(Watcher.Action.ADDED, createActivity(Integer.toString(i), "1", Statuses.RUNNING));
+        }
+        AtomicBoolean writing = new AtomicBoolean(true);
+        List<String> failures = new CopyOnWriteArrayList<>();
+        Thread writer = new Thread(() -> {
+            for (int version = 2; version < 200; version++) {
+                String status = version % 2 == 0 ? Statuses.SUCCEEDED : Statuses.RUNNING;
+                for (int i = 1; i <= builds; i++) {
+                    client.receive(Watcher.Action.MODIFIED, createActivity(Integer.toString(i), Integer.toString(version), status));
+                }
+            }
+            writing.set(false);
+        });
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 2; r++) {
+            readers.add(new Thread(() -> {
+                while (writing.get()) {
+                    List<PipelineActivity> pipelines = client.getPipelines();
+                    Set<String> seen = new HashSet<>();
+                    for (PipelineActivity activity : pipelines) {
+                        if (!seen.add(activity.getSpec().getBuild())) {
+                            failures.add("build " + activity.getSpec().getBuild() + " listed twice");
+                        }
+                    }
+                    if (seen.size() != builds) {
+                        failures.add("listed " + seen.size() + " builds");
+                    }
+                    for (String status : Arrays.asList(Statuses.RUNNING, Statuses.SUCCEEDED)) {
+                        for (PipelineActivity activity : client.findPipelinesByStatus(status)) {
+                            if (!status.equals(activity.getSpec().getStatus())) {
+                                failures.add("found " + activity.getSpec().getStatus() + " build looking for " + status);
+                            }
+                        }
+                    }
+                }
+            }));
+        }
+        readers.forEach(Thread::start);
+        writer.start();
+        writer.join(TIMEOUT_MS);
+        for (Thread reader : readers) {
+            reader.join(TIMEOUT_MS);
+        }
+        assertEquals(Collections.emptyList(), failures);
+
+        // reads never wait for a relist or watch event which holds the write lock
+        Field writeLock = PipelineClient.class.getDeclaredField("writeLock");
+        writeLock.setAccessible(true);
+        synchronized (writeLock.get(client)) {
+            FutureTask<List<PipelineActivity>> read = new FutureTask<>(client::getPipelines);
+            new Thread(read).start();
+            assertEquals(builds, read.get(TIMEOUT_MS, TimeUnit.MILLISECONDS).size());
+            FutureTask<List<PipelineActivity>> find = new FutureTask<>(() -> client.findPipelinesByStatus(Statuses.RUNNING));
+            new Thread(find).start();
+            assertEquals(builds, find.get(TIMEOUT_MS, TimeUnit.MILLISECONDS).size());
+        }
+    }
+
+    private void startClient() {
+        startClient(PipelineClient.DEFAULT_PAGE_SIZE);
+    }
+
+    private void startClient(int pageSize) {
+        pipelineClient = PipelineClient.newInstance(server.getClient(), NAMESPACE);
+        pipelineClient.setPageSize(pageSize);
+        pipelineClient.addListener(new Watcher<PipelineActivity>() {
+            @Override
+            public void eventReceived(Action action, PipelineActivity activity) {
+                events.add(action + " " + activity.getSpec().getBuild());
+            }
+
+            @Override
+            public void onClose(KubernetesClientException e) {
+                closes.add(e);
+            }
+        });
+        pipelineClient.start();
+    }
+
+    private void awaitEvents(String... expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (events.size() < expected.length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(Arrays.asList(expected), new ArrayList<>(events));
+    }
+
+    private static class BackoffClient extends PipelineClient {
+        BackoffClient() {
+            super(null, NAMESPACE);
+        }
+
+        long getNextReconnectDelay() {
+            return nextReconnectDelay();
+        }
+    }
+
+    private static class EventClient extends PipelineClient {
+        EventClient() {
+            super(null, NAMESPACE);
+        }
+
+        void receive(Watcher.Action action, PipelineActivity activity) {
+            onEventReceived(action, activity);
+        }
+    }
+
+    private static PipelineActivityList createList(String resourceVersion, PipelineActivity... items) {
+        PipelineActivityList list = new PipelineActivityList();
+        list.setMetadata(new ListMetaBuilder().withResourceVersion(resourceVersion).build());
+        list.setItems(Arrays.asList(items));
+        return list;
+    }
+
+    private static PipelineActivity createActivity(String build, String resourceVersion) {
+        return createActivity(build, resourceVersion, null);
+    }
+
+    private static PipelineActivity createActivity(String build, String resourceVersion, String status) {
+        PipelineActivity activity = new PipelineActivity();
+        activity.setMetadata(new ObjectMetaBuilder().withName("jenkins-x-demo-master-" + build).withResourceVersion(resourceVersion).build());
+        PipelineActivitySpec spec = new PipelineActivitySpec();
+        spec.setPipeline("jenkins-x/demo/master");
+        spec.setBuild(build);
+        spec.setStatus(status);
+        activity.setSpec(spec);
+        return activity;
+    }
+}
@@ -0,0 +1,82 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import io.jenkins.x.client.PipelineIndex;
+import io.jenkins.x.client.kube.PipelineActivity;
+import io.jenkins.x.client.kube.PipelineActivitySpec;
+import io.jenkins.x.client.kube.PipelineKey;
+import io.jenkins.x.client.kube.Statuses;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineIndexTest {
+    private final PipelineIndex index = new PipelineIndex();
+
+    @Test
+    public void testIndexesEachField() {
+        PipelineKey key = new PipelineKey("jenkins-x/demo/master", 1);
+        index.add(key, createActivity(Statuses.RUNNING, "abc1234def"));
+
+        assertEquals(Arrays.asList(key), new ArrayList<>(index.getKeys(PipelineIndex.Field.OWNER, "jenkins-x")));
+        assertEquals(Arrays.asList(key), new ArrayList<>(index.getKeys(PipelineIndex.Field.REPOSITORY, "demo")));
+        assertEquals(Arrays.asList(key), new ArrayList<>(index.getKeys(PipelineIndex.Field.BRANCH, "master")));
+        assertEquals(Arrays.asList(key), new ArrayList<>(index.getKeys(PipelineIndex.Field.STATUS, Statuses.RUNNING)));
+        assertEquals(Arrays.asList(key), new ArrayList<>(index.getKeys(PipelineIndex.Field.AUTHOR, "jstrachan")));
+        assertEquals(1, index.getKeysByPrefix(PipelineIndex.Field.COMMIT, "abc123").size());
+        assertTrue(index.getKeysByPrefix(PipelineIndex.Field.COMMIT, "abd").isEmpty());
+    }
+
+    @Test
+    public void testKeysAreNewestFirst() {
+        PipelineKey first = new PipelineKey("jenkins-x/demo/master", 1);
+        PipelineKey second = new PipelineKey("jenkins-x/demo/master", 2);
+        index.add(first, createActivity(Statuses.SUCCEEDED, "abc"));
+        index.add(second, createActivity(Statuses.SUCCEEDED, "def"));
+        assertEquals(Arrays.asList(second, first), new ArrayList<>(index.getKeys(PipelineIndex.Field.OWNER, "jenkins-x")));
+    }
+
+    @Test
+    public void testRemovesOnlyChangedValues() {
+        PipelineKey key = new PipelineKey("jenkins-x/demo/master", 1);
+        PipelineActivity running = createActivity(Statuses.RUNNING, "abc");
+        PipelineActivity succeeded = createActivity(Statuses.SUCCEEDED, "abc");
+        index.add(key, running);
+        index.add(key, succeeded);
+        index.remove(key, running, succeeded);
+
+        assertTrue(index.getKeys(PipelineIndex.Field.STATUS, Statuses.RUNNING).isEmpty());
+        assertEquals(1, index.getValueCount(PipelineIndex.Field.STATUS));
+        assertTrue(index.getKeys(PipelineIndex.Field.STATUS, Statuses.SUCCEEDED).contains(key));
+        assertTrue(index.getKeys(PipelineIndex.Field.OWNER, "jenkins-x").contains(key));
+    }
+
+    @Test
+    public void testRemovesDeletedActivities() {
+        PipelineKey key = new PipelineKey("jenkins-x/demo/master", 1);
+        PipelineActivity activity = createActivity(Statuses.SUCCEEDED, "abc");
+        index.add(key, activity);
+        index.remove(key, activity, null);
+
+        for (PipelineIndex.Field field : PipelineIndex.Field.values()) {
+            assertEquals(field.name(), 0, index.getValueCount(field));
+        }
+    }
+
+    private static PipelineActivity createActivity(String status, String sha) {
+        PipelineActivitySpec spec = new PipelineActivitySpec();
+        spec.setPipeline("jenkins-x/demo/master");
+        spec.setGitOwner("jenkins-x");
+        spec.setGitRepository("demo");
+        spec.setGitBranch("master");
+        spec.setStatus(status);
+        spec.setAuthor("jstrachan");
+        spec.setLastCommitSHA(sha);
+        PipelineActivity activity = new PipelineActivity();
+        activity.setSpec(spec);
+        return activity;
+    }
+}
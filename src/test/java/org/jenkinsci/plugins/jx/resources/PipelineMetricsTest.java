@@ -0,0 +1,98 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineMetricsTest {
+
+    @Test
+    public void testWritesHistogramsAndCounters() throws IOException {
+        PipelineMetrics metrics = new PipelineMetrics(100);
+        metrics.recordBuild("jenkins-x", "demo", "master", "Succeeded", 90000, 2000);
+        metrics.recordStage("jenkins-x", "demo", "master", "Build", "Succeeded", 45000);
+
+        String text = write(metrics);
+        assertTrue(text, text.contains("# TYPE jx_pipeline_build_duration_seconds histogram\n"));
+        assertTrue(text, text.contains("jx_pipeline_build_duration_seconds_bucket{owner=\"jenkins-x\",repository=\"demo\",branch=\"master\",le=\"60.0\"} 0\n"));
+        assertTrue(text, text.contains("jx_pipeline_build_duration_seconds_bucket{owner=\"jenkins-x\",repository=\"demo\",branch=\"master\",le=\"120.0\"} 1\n"));
+        assertTrue(text, text.contains("jx_pipeline_build_duration_seconds_bucket{owner=\"jenkins-x\",repository=\"demo\",branch=\"master\",le=\"+Inf\"} 1\n"));
+        assertTrue(text, text.contains("jx_pipeline_build_duration_seconds_sum{owner=\"jenkins-x\",repository=\"demo\",branch=\"master\"} 90.0\n"));
+        assertTrue(text, text.contains("jx_pipeline_queue_time_seconds_count{owner=\"jenkins-x\",repository=\"demo\",branch=\"master\"} 1\n"));
+        assertTrue(text, text.contains("jx_pipeline_stage_duration_seconds_count{owner=\"jenkins-x\",repository=\"demo\",branch=\"master\",stage=\"Build\"} 1\n"));
+        assertTrue(text, text.contains("jx_pipeline_builds_total{owner=\"jenkins-x\",repository=\"demo\",branch=\"master\",status=\"Succeeded\"} 1\n"));
+        assertTrue(text, text.contains("jx_pipeline_stages_total{owner=\"jenkins-x\",repository=\"demo\",branch=\"master\",stage=\"Build\",status=\"Succeeded\"} 1\n"));
+    }
+
+    @Test
+    public void testUnknownQueueTimeIsNotRecorded() throws IOException {
+        PipelineMetrics metrics = new PipelineMetrics(100);
+        metrics.recordBuild("jenkins-x", "demo", "master", "Failed", 1000, -1);
+        assertFalse(write(metrics).contains("jx_pipeline_queue_time_seconds_count"));
+    }
+
+    @Test
+    public void testEscapesLabelValues() throws IOException {
+        PipelineMetrics metrics = new PipelineMetrics(100);
+        metrics.recordBuild("jenkins-x", "demo", "say \"hi\"\\\n", "Succeeded", -1, -1);
+        assertTrue(write(metrics).contains("branch=\"say \\\"hi\\\"\\\\\\n\""));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUpdatedSeries() throws IOException {
+        PipelineMetrics metrics = new PipelineMetrics(2);
+        metrics.recordBuild("jenkins-x", "demo", "PR-1", "Succeeded", -1, -1);
+        metrics.recordBuild("jenkins-x", "demo", "PR-2", "Succeeded", -1, -1);
+        metrics.recordBuild("jenkins-x", "demo", "PR-1", "Succeeded", -1, -1);
+        metrics.recordBuild("jenkins-x", "demo", "PR-3", "Succeeded", -1, -1);
+
+        assertEquals(2, metrics.getSeriesCount());
+        assertEquals(1, metrics.getEvictedSeries());
+        String text = write(metrics);
+        assertTrue(text, text.contains("branch=\"PR-1\",status=\"Succeeded\"} 2\n"));
+        assertFalse(text, text.contains("PR-2"));
+        assertTrue(text, text.contains("branch=\"PR-3\""));
+    }
+
+    @Test
+    public void testEvictsEveryFamilyOfABranchTogether() throws IOException {
+        PipelineMetrics metrics = new PipelineMetrics(9);
+        metrics.recordBuild("jenkins-x", "demo", "PR-1", "Succeeded", 1000, 1000);
+        metrics.recordStage("jenkins-x", "demo", "PR-1", "Build", "Succeeded", 1000);
+        metrics.recordBuild("jenkins-x", "demo", "PR-2", "Succeeded", 1000, 1000);
+        assertEquals(8, metrics.getSeriesCount());
+        // updating the older branch keeps all of its series
+        metrics.recordBuild("jenkins-x", "demo", "PR-1", "Failed", 1000, 1000);
+        assertEquals(9, metrics.getSeriesCount());
+
+        metrics.recordStage("jenkins-x", "demo", "PR-3", "Build", "Succeeded", 1000);
+        String text = write(metrics);
+        assertFalse("every series of the least recently updated branch is dropped", text.contains("PR-2"));
+        assertEquals(9 + 2 - 3, metrics.getSeriesCount());
+        assertEquals(3, metrics.getEvictedSeries());
+        assertTrue(text, text.contains("jx_pipeline_build_duration_seconds_count{owner=\"jenkins-x\",repository=\"demo\",branch=\"PR-1\"} 2\n"));
+        assertTrue(text, text.contains("jx_pipeline_queue_time_seconds_count{owner=\"jenkins-x\",repository=\"demo\",branch=\"PR-1\"} 2\n"));
+        assertTrue(text, text.contains("jx_pipeline_builds_total{owner=\"jenkins-x\",repository=\"demo\",branch=\"PR-1\",status=\"Failed\"} 1\n"));
+        assertTrue(text, text.contains("jx_pipeline_stages_total{owner=\"jenkins-x\",repository=\"demo\",branch=\"PR-1\",stage=\"Build\",status=\"Succeeded\"} 1\n"));
+        assertTrue(text, text.contains("jx_pipeline_stage_duration_seconds_count{owner=\"jenkins-x\",repository=\"demo\",branch=\"PR-3\",stage=\"Build\"} 1\n"));
+    }
+
+    @Test
+    public void testQueuedSinceIsTakenOnce() {
+        PipelineMetrics metrics = new PipelineMetrics(100);
+        metrics.onLeftQueue(42, 1000);
+        assertEquals(1000, metrics.takeQueuedSince(42));
+        assertEquals(0, metrics.takeQueuedSince(42));
+    }
+
+    private static String write(PipelineMetrics metrics) throws IOException {
+        StringWriter writer = new StringWriter();
+        metrics.write(writer);
+        return writer.toString();
+    }
+}
@@ -0,0 +1,38 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PollBackoffTest {
+
+    @Test
+    public void testBacksOffWhileUnchanged() {
+        PollBackoff backoff = new PollBackoff(1000, 60000);
+        long[] expected = {2000, 4000, 8000, 16000, 32000, 60000, 60000};
+        for (long interval : expected) {
+            assertJittered(interval, backoff.nextDelay(false));
+            assertEquals(interval, backoff.getIntervalMs());
+        }
+    }
+
+    @Test
+    public void testSnapsBackWhenChanged() {
+        PollBackoff backoff = new PollBackoff(1000, 60000);
+        for (int i = 0; i < 10; i++) {
+            backoff.nextDelay(false);
+        }
+        assertJittered(1000, backoff.nextDelay(true));
+
+        for (int i = 0; i < 10; i++) {
+            backoff.nextDelay(false);
+        }
+        backoff.reset();
+        assertEquals(1000, backoff.getIntervalMs());
+    }
+
+    protected void assertJittered(long interval, long delay) {
+        assertTrue("delay " + delay + " should be within 20% of " + interval, delay >= interval * 0.8 && delay <= interval * 1.2);
+    }
+}
@@ -0,0 +1,78 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QuantileSketchTest {
+
+    @Test
+    public void testQuantilesAreWithinRelativeAccuracy() {
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = 1; i <= 10000; i++) {
+            sketch.add(i);
+        }
+        assertEquals(10000, sketch.getCount());
+        assertEquals(5000, sketch.getQuantile(0.5), 5000 * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+        assertEquals(9500, sketch.getQuantile(0.95), 9500 * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+        assertEquals(10000, sketch.getQuantile(1), 10000 * QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+    }
+
+    @Test
+    public void testMergeIsTheSameAsAddingEverything() {
+        Random random = new Random(42);
+        QuantileSketch all = new QuantileSketch();
+        QuantileSketch first = new QuantileSketch();
+        QuantileSketch second = new QuantileSketch();
+        for (int i = 0; i < 1000; i++) {
+            double fast = 1000 + random.nextInt(1000);
+            double slow = 600000 + random.nextInt(60000);
+            all.add(fast);
+            all.add(slow);
+            first.add(fast);
+            second.add(slow);
+        }
+        first.merge(second);
+        assertEquals(all.getCount(), first.getCount());
+        for (double q : new double[]{0.1, 0.5, 0.9, 0.99}) {
+            assertEquals(all.getQuantile(q), first.getQuantile(q), 0);
+        }
+    }
+
+    @Test
+    public void testBucketsAreBounded() {
+        QuantileSketch sketch = new QuantileSketch(0.01, 64);
+        for (double value = 1; value < 1e12; value *= 1.1) {
+            sketch.add(value);
+        }
+        assertTrue(sketch.getBucketCount() <= 64);
+        // the highest values keep their accuracy while the lowest are collapsed
+        assertEquals(sketch.getQuantile(1), 1e12, 1e12 * 0.1);
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.add(0);
+        for (int i = 0; i < 100; i++) {
+            sketch.add(30000 + i * 100);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        sketch.write(new DataOutputStream(bytes));
+        assertTrue("sketch took " + bytes.size() + " bytes", bytes.size() < 64);
+
+        QuantileSketch read = QuantileSketch.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(sketch.getCount(), read.getCount());
+        for (double q : new double[]{0, 0.5, 0.95, 1}) {
+            assertEquals(sketch.getQuantile(q), read.getQuantile(q), 0);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StageBaselinesTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testFlagsStagesSlowerThanTheirBaseline() {
+        StageBaselines baselines = new StageBaselines(folder.getRoot().toPath().resolve("baselines.bin"), 10);
+        for (int i = 0; i < StageBaselines.MIN_SAMPLES; i++) {
+            assertEquals("not enough history yet", -1, baselines.record("demo/master", "Build", 60000 + i * 1000));
+        }
+        assertEquals(-1, baselines.record("demo/master", "Build", 70000));
+        long p95 = baselines.record("demo/master", "Build", 180000);
+        assertEquals(79000, p95, 79000 * 0.05);
+        assertEquals(-1, baselines.record("demo/master", "Test", 180000));
+    }
+
+    @Test
+    public void testKeepsTheMostRecentlyUsedStages() {
+        StageBaselines baselines = new StageBaselines(folder.getRoot().toPath().resolve("baselines.bin"), 2);
+        baselines.record("demo/master", "Build", 1000);
+        baselines.record("demo/master", "Test", 1000);
+        baselines.record("demo/master", "Build", 1000);
+        baselines.record("demo/master", "Deploy", 1000);
+        assertEquals(2, baselines.size());
+        assertEquals(-1, baselines.getQuantile("demo/master", "Test", 0.5));
+        assertTrue(baselines.getQuantile("demo/master", "Build", 0.5) > 0);
+    }
+
+    @Test
+    public void testBaselinesSurviveReload() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("jx-resources/baselines.bin");
+        StageBaselines baselines = new StageBaselines(file, 10);
+        for (int i = 0; i < 100; i++) {
+            baselines.record("demo/master", "Build", 60000 + i * 100);
+        }
+        baselines.save();
+        assertFalse(baselines.isDirty());
+
+        StageBaselines reloaded = new StageBaselines(file, 10);
+        reloaded.load();
+        assertEquals(1, reloaded.size());
+        assertEquals(baselines.getQuantile("demo/master", "Build", 0.95), reloaded.getQuantile("demo/master", "Build", 0.95));
+    }
+}
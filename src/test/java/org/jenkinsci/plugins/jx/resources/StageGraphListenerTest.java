@@ -0,0 +1,85 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import hudson.model.Result;
+import hudson.model.Run;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.cps.nodes.StepAtomNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graphanalysis.DepthFirstScanner;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.support.steps.input.InputAction;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which new flow nodes make the {@link StageGraphListener} sync the run
+ */
+public class StageGraphListenerTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void testSyncsFollowStageTransitions() throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class, "stages");
+        job.setDefinition(new CpsFlowDefinition(
+                "stage('Build') { echo 'one'; echo 'two' }\n" +
+                "stage('Approve') { input 'Ship it?' }\n" +
+                "stage('Broken') { echo 'three'; error 'broken' }", true));
+        WorkflowRun run = job.scheduleBuild2(0).waitForStart();
+        InputAction input;
+        while ((input = run.getAction(InputAction.class)) == null || input.getExecutions().isEmpty()) {
+            Thread.sleep(100);
+        }
+        input.getExecutions().get(0).proceed(null);
+        j.assertBuildStatus(Result.FAILURE, j.waitForCompletion(run));
+
+        List<FlowNode> triggers = j.jenkins.getExtensionList(StageGraphListener.class).get(RecordingListener.class).nodes;
+        List<String> triggerIds = new ArrayList<>();
+        for (FlowNode node : triggers) {
+            triggerIds.add(node.getId());
+        }
+        int stageNodes = 0;
+        boolean sawInput = false;
+        boolean error = false;
+        for (FlowNode node : new DepthFirstScanner().allNodes(run.getExecution())) {
+            if (StageGraphListener.isStageStart(node) || StageGraphListener.isStageEnd(node)) {
+                assertTrue("stage node " + node + " did not sync the run", triggerIds.contains(node.getId()));
+                stageNodes++;
+            } else if (StageGraphListener.isInputStep(node)) {
+                assertTrue("input step did not sync the run", triggerIds.contains(node.getId()));
+                sawInput = true;
+            } else if (node instanceof StepAtomNode && "echo".equals(((StepAtomNode) node).getDescriptor().getFunctionName())) {
+                assertFalse("echo step " + node + " synced the run", triggerIds.contains(node.getId()));
+            }
+            error |= node.getError() != null && triggerIds.contains(node.getId());
+        }
+        assertEquals("a start and end for each of the 3 stages", 6, stageNodes);
+        assertTrue(sawInput);
+        assertTrue("the failure did not sync the run", error);
+        for (int i = 1; i < triggers.size(); i++) {
+            assertTrue("syncs should follow the order of the flow graph",
+                    Integer.parseInt(triggerIds.get(i)) > Integer.parseInt(triggerIds.get(i - 1)));
+        }
+    }
+
+    @TestExtension
+    public static class RecordingListener extends StageGraphListener {
+        private final List<FlowNode> nodes = new CopyOnWriteArrayList<>();
+
+        @Override
+        protected void stageGraphChanged(Run run, FlowNode node) {
+            nodes.add(node);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import io.jenkins.x.client.kube.PipelineActivitySpec;
+import io.jenkins.x.client.kube.PipelineActivityStep;
+import io.jenkins.x.client.kube.StageActivityStep;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class StageIndexTest {
+
+    @Test
+    public void testCreatesOneStepPerStage() {
+        StageIndex index = new StageIndex();
+        PipelineActivitySpec spec = new PipelineActivitySpec();
+        StageActivityStep build = index.getOrCreateStage(spec, new StageInfo("3", "Build", 0), 0);
+        StageActivityStep test = index.getOrCreateStage(spec, new StageInfo("9", "Test", 0), 1);
+
+        assertNotSame(build, test);
+        assertSame(build, index.getOrCreateStage(spec, new StageInfo("3", "Build", 0), 0));
+        assertSame(test, index.getOrCreateStage(spec, new StageInfo("9", "Test", 0), 1));
+        assertEquals(2, spec.getSteps().size());
+        assertEquals("stage", spec.getSteps().get(1).getKind());
+    }
+
+    @Test
+    public void testMatchesExistingStagesByPosition() {
+        PipelineActivitySpec spec = new PipelineActivitySpec();
+        PipelineActivityStep other = new PipelineActivityStep();
+        other.setKind("promote");
+        spec.getSteps().add(other);
+        StageActivityStep existing = new StageActivityStep();
+        PipelineActivityStep step = new PipelineActivityStep();
+        step.setKind("stage");
+        step.setStage(existing);
+        spec.getSteps().add(step);
+
+        StageIndex index = new StageIndex();
+        assertSame(existing, index.getOrCreateStage(spec, new StageInfo("3", "Build", 0), 0));
+        index.getOrCreateStage(spec, new StageInfo("9", "Test", 0), 1);
+        assertEquals(3, spec.getSteps().size());
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testRebuildsForNewSpec() {
+        StageIndex index = new StageIndex();
+        PipelineActivitySpec spec = new PipelineActivitySpec();
+        index.getOrCreateStage(spec, new StageInfo("3", "Build", 0), 0);
+
+        PipelineActivitySpec reloaded = new PipelineActivitySpec();
+        StageActivityStep stage = index.getOrCreateStage(reloaded, new StageInfo("3", "Build", 0), 0);
+        assertSame(reloaded.getSteps().get(0).getStage(), stage);
+        assertEquals(1, reloaded.getSteps().size());
+    }
+
+    @Test
+    public void testKeepsStagesAcrossRebuildWhenStepsAreReordered() {
+        StageIndex index = new StageIndex();
+        PipelineActivitySpec spec = new PipelineActivitySpec();
+        index.getOrCreateStage(spec, new StageInfo("3", "Build", 0), 0).setName("Build");
+        index.getOrCreateStage(spec, new StageInfo("9", "Test", 0), 1).setName("Test");
+
+        // the copy of the activity returned by the API server with its stage steps in a different order
+        PipelineActivitySpec reloaded = new PipelineActivitySpec();
+        reloaded.getSteps().add(createStageStep("Test"));
+        reloaded.getSteps().add(createStageStep("Build"));
+
+        StageActivityStep build = index.getOrCreateStage(reloaded, new StageInfo("3", "Build", 0), 0);
+        StageActivityStep test = index.getOrCreateStage(reloaded, new StageInfo("9", "Test", 0), 1);
+        assertSame(reloaded.getSteps().get(1).getStage(), build);
+        assertSame(reloaded.getSteps().get(0).getStage(), test);
+        assertEquals(2, reloaded.getSteps().size());
+    }
+
+    private static PipelineActivityStep createStageStep(String name) {
+        StageActivityStep stage = new StageActivityStep();
+        stage.setName(name);
+        PipelineActivityStep step = new PipelineActivityStep();
+        step.setKind("stage");
+        step.setStage(stage);
+        return step;
+    }
+}
@@ -0,0 +1,164 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import com.cloudbees.workflow.rest.external.RunExt;
+import com.cloudbees.workflow.rest.external.StageNodeExt;
+import com.cloudbees.workflow.rest.external.StatusExt;
+import hudson.model.Result;
+import io.jenkins.x.client.kube.Statuses;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.support.steps.input.InputAction;
+import org.jenkinsci.plugins.workflow.support.steps.input.InputStepExecution;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the {@link StageTracker} reports the same stages as <code>RunExt.create()</code> which we used to call
+ * on every sync
+ */
+public class StageTrackerTest {
+    /**
+     * Stage durations are measured up to slightly different flow nodes
+     */
+    private static final long DURATION_TOLERANCE_MS = 500;
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void testStagesMatchRunExt() throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class, "stages");
+        job.setDefinition(new CpsFlowDefinition(
+                "pipeline {\n" +
+                "  agent none\n" +
+                "  stages {\n" +
+                "    stage('Build') { steps { echo 'building' } }\n" +
+                "    stage('Tests') {\n" +
+                "      parallel {\n" +
+                "        stage('Unit') { steps { echo 'unit' } }\n" +
+                "        stage('Lint') { steps { sleep time: 100, unit: 'MILLISECONDS' } }\n" +
+                "      }\n" +
+                "    }\n" +
+                "    stage('Conditional') { when { expression { false } } steps { echo 'never' } }\n" +
+                "    stage('Flaky') { steps { unstable 'flaky tests' } }\n" +
+                "    stage('Approve') { steps { input 'Ship it?' } }\n" +
+                "    stage('Broken') { steps { error 'broken' } }\n" +
+                "    stage('After') { steps { echo 'skipped after the failure' } }\n" +
+                "  }\n" +
+                "}", true));
+        WorkflowRun run = job.scheduleBuild2(0).waitForStart();
+        StageTracker tracker = new StageTracker();
+
+        InputStepExecution input = waitForInput(run);
+        assertStagesMatch(run, tracker.update(run));
+
+        input.proceed(null);
+        j.assertBuildStatus(Result.FAILURE, j.waitForCompletion(run));
+        List<StageInfo> stages = tracker.update(run);
+        assertStagesMatch(run, stages);
+        assertEquals(Statuses.UNSTABLE, find(stages, "Flaky").getStatus());
+        assertEquals(Statuses.FAILED, find(stages, "Broken").getStatus());
+    }
+
+    @Test
+    public void testUnstableRunWaitingForInput() throws Exception {
+        WorkflowJob job = j.createProject(WorkflowJob.class, "unstable");
+        job.setDefinition(new CpsFlowDefinition(
+                "stage('Build') { echo 'building' }\n" +
+                "stage('Test') { currentBuild.result = 'UNSTABLE'; input 'Ship it?' }", true));
+        WorkflowRun run = job.scheduleBuild2(0).waitForStart();
+        StageTracker tracker = new StageTracker();
+
+        InputStepExecution input = waitForInput(run);
+        assertStagesMatch(run, tracker.update(run));
+        assertEquals(Statuses.WAITING_FOR_APPROVAL, find(tracker.update(run), "Test").getStatus());
+
+        input.proceed(null);
+        j.assertBuildStatus(Result.UNSTABLE, j.waitForCompletion(run));
+        assertStagesMatch(run, tracker.update(run));
+    }
+
+    private static InputStepExecution waitForInput(WorkflowRun run) throws Exception {
+        while (true) {
+            InputAction action = run.getAction(InputAction.class);
+            if (action != null && !action.getExecutions().isEmpty()) {
+                return action.getExecutions().get(0);
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private static void assertStagesMatch(WorkflowRun run, List<StageInfo> stages) {
+        List<StageNodeExt> expected = RunExt.create(run).getStages();
+        assertEquals(getNames(expected), getStageInfoNames(stages));
+        for (int i = 0; i < expected.size(); i++) {
+            StageNodeExt expectedStage = expected.get(i);
+            StageInfo stage = stages.get(i);
+            String name = stage.getName();
+            assertEquals(name + " status", getStatus(expectedStage.getStatus()), stage.getStatus());
+            assertEquals(name + " start", expectedStage.getStartTimeMillis(), stage.getStartTimeMillis());
+            if (Statuses.isCompleted(stage.getStatus()) || Statuses.UNSTABLE.equals(stage.getStatus())) {
+                long difference = Math.abs(expectedStage.getDurationMillis() - stage.getDurationMillis());
+                assertTrue(name + " duration " + stage.getDurationMillis() + " expected " + expectedStage.getDurationMillis(),
+                        difference <= DURATION_TOLERANCE_MS);
+            }
+        }
+    }
+
+    private static StageInfo find(List<StageInfo> stages, String name) {
+        for (StageInfo stage : stages) {
+            if (name.equals(stage.getName())) {
+                return stage;
+            }
+        }
+        throw new AssertionError("No stage " + name + " in " + stages);
+    }
+
+    private static List<String> getNames(List<StageNodeExt> stages) {
+        List<String> answer = new ArrayList<>();
+        for (StageNodeExt stage : stages) {
+            answer.add(stage.getName());
+        }
+        return answer;
+    }
+
+    private static List<String> getStageInfoNames(List<StageInfo> stages) {
+        List<String> answer = new ArrayList<>();
+        for (StageInfo stage : stages) {
+            answer.add(stage.getName());
+        }
+        return answer;
+    }
+
+    /**
+     * The mapping we used to apply to the status of each <code>StageNodeExt</code>
+     */
+    private static String getStatus(StatusExt status) {
+        switch (status) {
+            case ABORTED:
+                return Statuses.ABORTED;
+            case NOT_EXECUTED:
+                return Statuses.NOT_EXECUTED;
+            case SUCCESS:
+                return Statuses.SUCCEEDED;
+            case IN_PROGRESS:
+                return Statuses.PENDING;
+            case PAUSED_PENDING_INPUT:
+                return Statuses.WAITING_FOR_APPROVAL;
+            case FAILED:
+                return Statuses.FAILED;
+            case UNSTABLE:
+                return Statuses.UNSTABLE;
+            default:
+                return "";
+        }
+    }
+}
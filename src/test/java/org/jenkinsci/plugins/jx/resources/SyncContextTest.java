@@ -0,0 +1,84 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import hudson.model.Result;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.util.Build;
+import hudson.plugins.git.util.BuildData;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.support.steps.input.InputAction;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SyncContextTest {
+    private static final String JENKINS_URL = "http://jenkins.example.com/";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void testRunWithoutBuildDataIsOnlyWorkedOutOnce() throws Exception {
+        WorkflowRun run = startRun("jstrachan/mynode10");
+        SyncContext context = new SyncContext(new PollBackoff(1000, 60000));
+
+        context.resolve(run, JENKINS_URL);
+        assertFalse("the checkout may still happen", context.isResolved());
+        assertEquals("", context.getSha());
+        Map<String, String> labels = context.getLabels();
+        String buildUrl = context.getBuildUrl();
+
+        context.resolve(run, JENKINS_URL);
+        assertFalse(context.isResolved());
+        assertSame("nothing changed so nothing is worked out again", labels, context.getLabels());
+        assertSame(buildUrl, context.getBuildUrl());
+    }
+
+    @Test
+    public void testBuildDataIsPickedUpOnceTheCheckoutCompletes() throws Exception {
+        WorkflowRun run = startRun("jstrachan/mynode10");
+        SyncContext context = new SyncContext(new PollBackoff(1000, 60000));
+        context.resolve(run, JENKINS_URL);
+        Map<String, String> labels = context.getLabels();
+        String name = context.getName();
+
+        String sha = "0123456789abcdef0123456789abcdef01234567";
+        ObjectId id = ObjectId.fromString(sha);
+        Revision revision = new Revision(id, Collections.singletonList(new Branch("origin/feature", id)));
+        BuildData buildData = new BuildData();
+        buildData.saveBuild(new Build(revision, revision, run.getNumber(), Result.SUCCESS));
+        run.addAction(buildData);
+
+        context.resolve(run, JENKINS_URL);
+        assertTrue("nothing else can change after the checkout", context.isResolved());
+        assertEquals(sha, context.getSha());
+        assertEquals("feature", context.getBranchName());
+        assertNotSame(name, context.getName());
+        assertTrue(context.getName().contains("feature"));
+        assertNotSame(labels, context.getLabels());
+        assertEquals("feature", context.getLabels().get("branch"));
+    }
+
+    private WorkflowRun startRun(String fullName) throws Exception {
+        String[] paths = fullName.split("/");
+        WorkflowJob job = j.createFolder(paths[0]).createProject(WorkflowJob.class, paths[1]);
+        job.setDefinition(new CpsFlowDefinition("input 'Ship it?'", true));
+        WorkflowRun run = job.scheduleBuild2(0).waitForStart();
+        while (run.getAction(InputAction.class) == null || run.getAction(InputAction.class).getExecutions().isEmpty()) {
+            Thread.sleep(100);
+        }
+        return run;
+    }
+}
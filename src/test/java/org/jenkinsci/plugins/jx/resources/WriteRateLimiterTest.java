@@ -0,0 +1,48 @@
+package org.jenkinsci.plugins.jx.resources;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WriteRateLimiterTest {
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void testNormalWritesLeaveReserveForPriorityWrites() {
+        WriteRateLimiter limiter = new WriteRateLimiter(10, 10, now::get);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(0, limiter.tryAcquire(false));
+        }
+        assertTrue("normal writes must wait", limiter.tryAcquire(false) > 0);
+        assertEquals(0, limiter.tryAcquire(true));
+        assertEquals(0, limiter.tryAcquire(true));
+        assertEquals(100, limiter.tryAcquire(true));
+    }
+
+    @Test
+    public void testRefillsOverTime() {
+        WriteRateLimiter limiter = new WriteRateLimiter(10, 10, now::get);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, limiter.tryAcquire(true));
+        }
+        assertEquals(300, limiter.tryAcquire(false));
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(300));
+        assertEquals(0, limiter.tryAcquire(false));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(60));
+        assertEquals(10, limiter.getTokens(), 0.001);
+    }
+
+    @Test
+    public void testZeroRateIsUnlimited() {
+        WriteRateLimiter limiter = new WriteRateLimiter(0, 1, now::get);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, limiter.tryAcquire(false));
+        }
+    }
+}